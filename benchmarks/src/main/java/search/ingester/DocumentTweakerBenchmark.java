@@ -0,0 +1,31 @@
+package search.ingester;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import search.ingester.models.Document;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class DocumentTweakerBenchmark {
+
+    @Param({ "1", "64", "4096" })
+    public int contentKb;
+
+    private Document doc;
+
+    @Setup
+    public void setUp() {
+        doc = new Document();
+        doc.setContent(Fixtures.text(contentKb, contentKb * 1024));
+    }
+
+    @Benchmark
+    public String setContentTruncatedField() {
+        DocumentTweaker.setContentTruncatedField(doc);
+        return doc.getContentTruncated();
+    }
+}
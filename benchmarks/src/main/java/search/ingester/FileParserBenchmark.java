@@ -0,0 +1,35 @@
+package search.ingester;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import search.ingester.models.Document;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(3)
+public class FileParserBenchmark {
+
+    @Param({ "pdf-10-pages", "pdf-100-pages", "docx-20-pages", "xlsx-5000-rows" })
+    public String file;
+
+    private FileParser fileParser;
+    private String base64;
+
+    @Setup
+    public void setUp() throws Exception {
+        // no extraction cache, this is measuring Tika
+        fileParser = new FileParser();
+        base64 = Fixtures.fileBase64(file);
+    }
+
+    @Benchmark
+    public Document parseFile() throws Exception {
+        Document doc = new Document();
+        doc.setTitle("Benchmark");
+        doc.setFileBase64(base64);
+        return fileParser.parseFile(doc);
+    }
+}
@@ -0,0 +1,234 @@
+package search.ingester;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import search.ingester.models.Document;
+import search.ingester.models.Keyword;
+import search.ingester.models.Message;
+
+/**
+ * The fixture corpus for the benchmarks. Everything is generated from fixed seeds rather than checked in, so the
+ * same text, files and messages come out on every run (as long as the PDFBox / POI versions don't change)
+ */
+public class Fixtures {
+
+    public static final String[] FILES = { "pdf-10-pages", "pdf-100-pages", "docx-20-pages", "xlsx-5000-rows" };
+
+    private static final String[] WORDS = {
+            "marine", "protected", "area", "habitat", "species", "seabird", "survey", "monitoring", "benthic",
+            "sediment", "conservation", "designation", "offshore", "inshore", "reef", "sandbank", "seagrass",
+            "biodiversity", "assessment", "evidence", "data", "report", "condition", "feature", "site", "special",
+            "scientific", "interest", "population", "trend", "abundance", "distribution", "annex", "directive",
+            "JNCC", "Natura", "2000", "terrestrial", "freshwater", "upland", "peatland", "woodland", "grassland",
+            "ecosystem", "services", "pressure", "activity", "fishing", "trawling", "aggregate", "extraction",
+            "renewable", "energy", "wind", "farm", "cable", "pipeline", "licence", "consent", "advice", "the", "of",
+            "and", "in", "to", "for", "with", "on", "by", "is", "are", "was", "were", "be", "this", "that", "from"
+    };
+
+    /**
+     * @param seed The seed, the same seed always gives the same text
+     * @param chars Roughly how many characters of text to generate
+     * @return Sentences of (not very meaningful) words, with the odd newline thrown in
+     */
+    public static String text(long seed, int chars) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(chars + 32);
+        int wordsInSentence = 0;
+
+        while (sb.length() < chars) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if (wordsInSentence == 0) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            }
+            sb.append(word);
+
+            if (++wordsInSentence > 8 + random.nextInt(12)) {
+                sb.append(random.nextInt(5) == 0 ? ".\n" : ". ");
+                wordsInSentence = 0;
+            } else {
+                sb.append(' ');
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @param name One of FILES
+     * @return The generated file, base64 encoded as it would be in a message
+     */
+    public static String fileBase64(String name) throws IOException {
+        byte[] bytes;
+        switch (name) {
+        case "pdf-10-pages":
+            bytes = pdf(10);
+            break;
+        case "pdf-100-pages":
+            bytes = pdf(100);
+            break;
+        case "docx-20-pages":
+            bytes = docx(20);
+            break;
+        case "xlsx-5000-rows":
+            bytes = xlsx(5000);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown fixture " + name);
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static byte[] pdf(int pages) throws IOException {
+        try (PDDocument pdf = new PDDocument()) {
+            Calendar epoch = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            epoch.setTimeInMillis(0);
+            pdf.getDocumentInformation().setTitle("Benchmark fixture");
+            pdf.getDocumentInformation().setCreationDate(epoch);
+
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage();
+                pdf.addPage(page);
+
+                try (PDPageContentStream content = new PDPageContentStream(pdf, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 10);
+                    content.setLeading(13f);
+                    content.newLineAtOffset(50, 740);
+                    for (String line : lines(text(p, 50 * 90), 90)) {
+                        content.showText(line);
+                        content.newLine();
+                    }
+                    content.endText();
+                }
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            pdf.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] docx(int pages) throws IOException {
+        try (XWPFDocument docx = new XWPFDocument()) {
+            docx.getProperties().getCoreProperties().setTitle("Benchmark fixture");
+            for (int p = 0; p < pages; p++) {
+                for (String paragraph : text(p, 3500).split("\n")) {
+                    docx.createParagraph().createRun().setText(paragraph);
+                }
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            docx.write(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] xlsx(int rows) throws IOException {
+        try (XSSFWorkbook xlsx = new XSSFWorkbook()) {
+            Random random = new Random(rows);
+            Sheet sheet = xlsx.createSheet("Survey");
+            for (int r = 0; r < rows; r++) {
+                Row row = sheet.createRow(r);
+                row.createCell(0).setCellValue(WORDS[random.nextInt(WORDS.length)]);
+                row.createCell(1).setCellValue(WORDS[random.nextInt(WORDS.length)]);
+                row.createCell(2).setCellValue(random.nextInt(10000));
+                row.createCell(3).setCellValue(random.nextDouble());
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            xlsx.write(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static List<String> lines(String text, int width) {
+        List<String> lines = new ArrayList<>();
+        for (String paragraph : text.split("\n")) {
+            for (int i = 0; i < paragraph.length(); i += width) {
+                lines.add(paragraph.substring(i, Math.min(paragraph.length(), i + width)));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @param contentKb Roughly how big the main document's content should be
+     * @return A website page upsert message
+     */
+    public static Message websiteMessage(int contentKb) {
+        Message m = new Message();
+        m.setIndex("benchmark");
+        m.setVerb("upsert");
+        m.setDocument(document("4b3a1d7e-0a52-4c3e-8f7d-3a5e6b9c1f20", "website", text(contentKb, contentKb * 1024)));
+        return m;
+    }
+
+    /**
+     * @param resources How many resources to attach
+     * @param file Which of FILES each resource should be
+     * @return A datahub record upsert message with file resources attached
+     */
+    public static Message datahubMessage(int resources, String file) throws IOException {
+        Message m = new Message();
+        m.setIndex("benchmark");
+        m.setVerb("upsert");
+        m.setDocument(document("9d8c7b6a-5f4e-4d3c-9b2a-1f0e9d8c7b6a", "datahub", text(1, 2048)));
+
+        String base64 = fileBase64(file);
+        List<Document> docs = new ArrayList<>();
+        for (int i = 0; i < resources; i++) {
+            Document resource = new Document();
+            resource.setTitle("Resource " + i);
+            resource.setUrl("https://data.jncc.gov.uk/data/benchmark/resource-" + i + ".pdf");
+            resource.setFileBase64(base64);
+            resource.setFileExtension(file.substring(0, file.indexOf('-')));
+            docs.add(resource);
+        }
+        m.setResources(docs);
+        return m;
+    }
+
+    public static String toJson(Message m) {
+        try (Jsonb jsonb = JsonbBuilder.create()) {
+            return jsonb.toJson(m);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static Document document(String id, String site, String content) {
+        Keyword keyword = new Keyword();
+        keyword.setVocab("http://vocab.jncc.gov.uk/jncc-web");
+        keyword.setValue("Marine");
+
+        List<Keyword> keywords = new ArrayList<>();
+        keywords.add(keyword);
+
+        Document doc = new Document();
+        doc.setId(id);
+        doc.setSite(site);
+        doc.setTitle("Benchmark " + site + " document");
+        doc.setUrl("https://jncc.gov.uk/benchmark/" + id);
+        doc.setContent(content);
+        doc.setKeywords(keywords);
+        doc.setPublishedDate("2019-03-01");
+        return doc;
+    }
+}
@@ -0,0 +1,51 @@
+package search.ingester;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import search.ingester.models.Message;
+
+/**
+ * Cold start, i.e. building the components in a fresh JVM and then processing the first message, with and without
+ * warming the components up first. Every measurement is a new fork, as only the first time through is of interest.
+ * The first message is a datahub record with a PDF resource, as loading the PDF parser is most of the cold start cost
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class InitBenchmark {
+
+    private static final String FIRST_MESSAGE = "{\"index\": \"benchmark\", \"verb\": \"upsert\", " +
+            "\"document\": {\"id\": \"3f2a4c4e-2b8d-4b1e-9a56-6a1d8f0f3c11\", \"site\": \"datahub\", " +
+            "\"title\": \"First\", \"content\": \"First message\", \"url\": \"https://example.com/first\"}, " +
+            "\"resources\": [{\"title\": \"A PDF\", \"file_extension\": \"pdf\", \"url\": \"https://example.com/pdf\", " +
+            "\"file_base64\": \"" +
+            Base64.getEncoder().encodeToString(Components.WARM_UP_PDF.getBytes(StandardCharsets.US_ASCII)) + "\"}]}";
+
+    @Param({ "false", "true" })
+    public boolean warmUp;
+
+    @Benchmark
+    public Components init() {
+        Components components = new Components(new Env());
+        if (warmUp) {
+            components.warmUp();
+        }
+        return components;
+    }
+
+    @Benchmark
+    public Message initAndFirstMessage() throws Exception {
+        Components components = init();
+        Processor processor = new Processor(new NoOpElasticService(), components.getFileParser(),
+                components.getValidator());
+
+        Message m = components.getJsonb().fromJson(FIRST_MESSAGE, Message.class);
+        processor.process(m);
+        return m;
+    }
+}
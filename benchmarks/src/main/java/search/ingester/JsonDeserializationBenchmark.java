@@ -0,0 +1,38 @@
+package search.ingester;
+
+import java.util.concurrent.TimeUnit;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import org.openjdk.jmh.annotations.*;
+import search.ingester.models.Message;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class JsonDeserializationBenchmark {
+
+    @Param({ "1", "64", "1024" })
+    public int payloadKb;
+
+    private Jsonb jsonb;
+    private String json;
+
+    @Setup
+    public void setUp() {
+        jsonb = JsonbBuilder.create();
+        json = Fixtures.toJson(Fixtures.websiteMessage(payloadKb));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        jsonb.close();
+    }
+
+    @Benchmark
+    public Message deserializeMessage() {
+        return jsonb.fromJson(json, Message.class);
+    }
+}
@@ -0,0 +1,49 @@
+package search.ingester;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.openjdk.jmh.annotations.*;
+import search.ingester.models.Document;
+
+/**
+ * Serializing a document into a request body, via a String (as it used to be) and streamed straight into the bytes.
+ * Run with -prof gc to see the difference in allocation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class JsonSerializationBenchmark {
+
+    @Param({ "1", "64", "1024" })
+    public int payloadKb;
+
+    private Jsonb jsonb;
+    private Document doc;
+
+    @Setup
+    public void setUp() {
+        jsonb = JsonbBuilder.create();
+        doc = Fixtures.websiteMessage(payloadKb).getDocument();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        jsonb.close();
+    }
+
+    @Benchmark
+    public byte[] serializeViaString() {
+        return jsonb.toJson(doc).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public BytesReference serializeStreaming() {
+        return ElasticService.serialize(jsonb, doc);
+    }
+}
@@ -0,0 +1,38 @@
+package search.ingester;
+
+import java.util.Collections;
+import java.util.Map;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import search.ingester.models.Document;
+
+/**
+ * Stands in for Elasticsearch in the benchmarks, documents are still serialized (as that's part of the cost of
+ * writing them) but nothing is sent anywhere
+ */
+public class NoOpElasticService extends ElasticService {
+
+    private final Jsonb jsonb = JsonbBuilder.create();
+
+    public NoOpElasticService() {
+        super(new Env());
+    }
+
+    @Override
+    public void putDocument(String index, Document doc, Long version) {
+        ElasticService.serialize(jsonb, doc);
+    }
+
+    @Override
+    public void deleteDocument(String index, String docId, Long version) {
+    }
+
+    @Override
+    public void deleteByParentId(String index, String parentDocId) {
+    }
+
+    @Override
+    public Map<String, String> getChildFingerprints(String index, String parentDocId) {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,62 @@
+package search.ingester;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import javax.validation.Validation;
+import org.openjdk.jmh.annotations.*;
+import search.ingester.models.Message;
+
+/**
+ * End to end processing of a message (deserialization, Tika, truncation, validation, serialization) with the
+ * Elasticsearch writes replaced by no-ops
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(3)
+public class ProcessorBenchmark {
+
+    @Param({ "website", "datahub-10-pdfs" })
+    public String message;
+
+    @Param({ "1", "4" })
+    public int resourceThreads;
+
+    private Jsonb jsonb;
+    private ExecutorService executor;
+    private Processor processor;
+    private String json;
+
+    @Setup
+    public void setUp() throws Exception {
+        jsonb = JsonbBuilder.create();
+        executor = resourceThreads > 1 ? Executors.newFixedThreadPool(resourceThreads) : null;
+        processor = new Processor(new NoOpElasticService(), new FileParser(),
+                Validation.buildDefaultValidatorFactory().getValidator(), executor, false);
+
+        json = Fixtures.toJson(message.equals("website")
+                ? Fixtures.websiteMessage(16)
+                : Fixtures.datahubMessage(10, "pdf-10-pages"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        jsonb.close();
+    }
+
+    @Benchmark
+    public Message process() throws Exception {
+        // processing changes the message, so start from the JSON each time
+        Message m = jsonb.fromJson(json, Message.class);
+        processor.process(m);
+        return m;
+    }
+}
@@ -0,0 +1,34 @@
+package search.ingester;
+
+import java.util.concurrent.TimeUnit;
+import javax.validation.Validation;
+import org.openjdk.jmh.annotations.*;
+import search.ingester.models.Document;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class ValidationBenchmark {
+
+    private Processor processor;
+    private Document doc;
+
+    @Setup
+    public void setUp() {
+        processor = new Processor(new NoOpElasticService(), new FileParser(),
+                Validation.buildDefaultValidatorFactory().getValidator());
+
+        doc = Fixtures.websiteMessage(4).getDocument();
+        DocumentTweaker.setContentTruncatedField(doc);
+        DocumentTweaker.setTimestamp(doc);
+    }
+
+    @Benchmark
+    public Document validateDocument() {
+        processor.validateDocument(doc);
+        return doc;
+    }
+}
@@ -0,0 +1,81 @@
+package search.ingester.replay;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Stands in for S3 when replaying messages that were too big for SQS and went via the SQS Extended Client. Objects
+ * are read from {root}/{bucket}/{key}, and deletes are only counted so the same messages can be replayed again
+ */
+public class FileSystemS3 extends AbstractAmazonS3 {
+
+    private final Path root;
+
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong deletes = new AtomicLong();
+
+    public FileSystemS3(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    public long getGets() { return gets.get(); }
+    public long getBytesRead() { return bytesRead.get(); }
+    public long getDeletes() { return deletes.get(); }
+
+    @Override
+    public S3Object getObject(GetObjectRequest req) {
+        Path file = resolve(req.getBucketName(), req.getKey());
+
+        S3Object object = new S3Object();
+        object.setBucketName(req.getBucketName());
+        object.setKey(req.getKey());
+        try {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(Files.size(file));
+            object.setObjectMetadata(metadata);
+            object.setObjectContent(new FileInputStream(file.toFile()));
+
+            gets.incrementAndGet();
+            bytesRead.addAndGet(metadata.getContentLength());
+        } catch (FileNotFoundException | NoSuchFileException ex) {
+            throw notFound(req.getBucketName(), req.getKey());
+        } catch (IOException ex) {
+            throw new AmazonS3Exception(String.format("Couldn't read %s :: %s", file, ex));
+        }
+        return object;
+    }
+
+    @Override
+    public void deleteObject(DeleteObjectRequest req) {
+        // make sure the key is one that could have been read, but leave the file alone
+        resolve(req.getBucketName(), req.getKey());
+        deletes.incrementAndGet();
+    }
+
+    private Path resolve(String bucket, String key) {
+        Path file = root.resolve(bucket).resolve(key).normalize();
+        if (!file.startsWith(root)) {
+            throw notFound(bucket, key);
+        }
+        return file;
+    }
+
+    private static AmazonS3Exception notFound(String bucket, String key) {
+        AmazonS3Exception ex = new AmazonS3Exception(String.format("No object %s in bucket %s", key, bucket));
+        ex.setStatusCode(404);
+        ex.setErrorCode("NoSuchKey");
+        return ex;
+    }
+}
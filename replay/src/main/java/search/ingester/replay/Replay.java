@@ -0,0 +1,283 @@
+package search.ingester.replay;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+
+import search.ingester.Components;
+import search.ingester.Ingester;
+import search.ingester.LocalContext;
+import search.ingester.metrics.Metrics;
+
+/**
+ * Replays a directory of recorded SQS message bodies (one per .json file, in file name order) through the real
+ * Ingester, with Elasticsearch and S3 stood in for locally, and reports the throughput, latency percentiles and peak
+ * heap. Messages that went via the SQS Extended Client are read from {s3 dir}/{bucket}/{key}. Latency is timed per
+ * invocation, so it's per message only with the default --batch-size of 1, otherwise it's per batch
+ *
+ *     java -jar replay/target/replay.jar <messages dir> [--s3-dir <dir>] [--batch-size <n>] [--passes <n>]
+ *         [--warmup-passes <n>] [--es-latency-ms <n>] [--es-threads <n>] [--timeout-ms <n>] [--log <file>]
+ *
+ * The ingester's own output (it logs every message) goes to the log file rather than the console, default replay.log
+ */
+public class Replay {
+
+    private static final String USAGE = "Usage: replay <messages dir> [--s3-dir <dir>] [--batch-size <n>] " +
+            "[--passes <n>] [--warmup-passes <n>] [--es-latency-ms <n>] [--es-threads <n>] [--timeout-ms <n>] " +
+            "[--log <file>]";
+
+    private Path messagesDir;
+    private Path s3Dir;
+    private int batchSize = 1;
+    private int passes = 1;
+    private int warmupPasses = 0;
+    private long esLatencyMs = 0;
+    private int esThreads = 16;
+    private long timeoutMs = 15 * 60 * 1000;
+    private String log = "replay.log";
+
+    private int messages = 0;
+    private int failures = 0;
+    // one per invocation, so per batch
+    private final List<Long> batchLatenciesNanos = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Replay replay = new Replay();
+        try {
+            replay.parseArgs(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        replay.run();
+        // the Elasticsearch client's threads would otherwise keep the JVM running
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (messagesDir != null) {
+                    throw new IllegalArgumentException(String.format("Unexpected argument %s", arg));
+                }
+                messagesDir = Paths.get(arg);
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(String.format("Missing value for %s", arg));
+            }
+
+            String value = args[++i];
+            switch (arg) {
+            case "--s3-dir": s3Dir = Paths.get(value); break;
+            case "--batch-size": batchSize = positive(arg, value); break;
+            case "--passes": passes = positive(arg, value); break;
+            case "--warmup-passes": warmupPasses = Integer.parseInt(value); break;
+            case "--es-latency-ms": esLatencyMs = Long.parseLong(value); break;
+            case "--es-threads": esThreads = positive(arg, value); break;
+            case "--timeout-ms": timeoutMs = Long.parseLong(value); break;
+            case "--log": log = value; break;
+            default: throw new IllegalArgumentException(String.format("Unknown option %s", arg));
+            }
+        }
+
+        if (messagesDir == null || !Files.isDirectory(messagesDir)) {
+            throw new IllegalArgumentException("A directory of messages to replay is needed");
+        }
+        if (s3Dir == null) {
+            s3Dir = messagesDir.resolve("s3");
+        }
+    }
+
+    private static int positive(String name, String value) {
+        int n = Integer.parseInt(value);
+        if (n < 1) {
+            throw new IllegalArgumentException(String.format("%s has to be at least 1", name));
+        }
+        return n;
+    }
+
+    private void run() throws IOException {
+        List<SQSMessage> recorded = readMessages(messagesDir);
+        if (recorded.isEmpty()) {
+            System.err.println(String.format("No .json messages in %s", messagesDir));
+            return;
+        }
+
+        // the request signer needs some credentials, the stand-in doesn't check them
+        if (System.getenv("AWS_ACCESS_KEY_ID") == null && System.getProperty("aws.accessKeyId") == null) {
+            System.setProperty("aws.accessKeyId", "replay");
+            System.setProperty("aws.secretKey", "replay");
+        }
+
+        StandInElasticsearch es = new StandInElasticsearch(esThreads, esLatencyMs);
+        es.start();
+        FileSystemS3 s3 = new FileSystemS3(s3Dir);
+
+        PrintStream console = System.out;
+        try (PrintStream logStream = new PrintStream(new FileOutputStream(log), true, "UTF-8")) {
+            System.setOut(logStream);
+
+            resetPeakHeap();
+            long initStart = System.nanoTime();
+            // the same as Components.get() does during the Lambda init phase
+            Components components = new Components(new ReplayEnv(es.getEndpoint()), s3);
+            components.warmUp();
+            Metrics.reset();
+            Ingester ingester = new Ingester(components);
+            long initNanos = System.nanoTime() - initStart;
+            long initPeakHeap = peakHeap();
+
+            for (int pass = 0; pass < warmupPasses; pass++) {
+                replay(ingester, recorded, "warmup-" + pass, false);
+            }
+
+            resetPeakHeap();
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                replay(ingester, recorded, "pass-" + pass, true);
+            }
+            long elapsedNanos = System.nanoTime() - start;
+
+            System.setOut(console);
+            report(initNanos, initPeakHeap, elapsedNanos, es, s3);
+        } finally {
+            System.setOut(console);
+            es.stop();
+        }
+    }
+
+    private static List<SQSMessage> readMessages(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.json")) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+
+        List<SQSMessage> messages = new ArrayList<>();
+        for (Path file : files) {
+            SQSMessage msg = new SQSMessage();
+            msg.setMessageId(file.getFileName().toString());
+            msg.setBody(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            messages.add(msg);
+        }
+        return messages;
+    }
+
+    /**
+     * Sends the recorded messages through the ingester in batches, as the SQS event source mapping would
+     *
+     * @param ingester The ingester to send them through
+     * @param recorded The recorded messages
+     * @param pass Added to each message ID, so IDs are unique across passes
+     * @param measure Whether to count this pass in the results
+     */
+    private void replay(Ingester ingester, List<SQSMessage> recorded, String pass, boolean measure) {
+        for (int from = 0; from < recorded.size(); from += batchSize) {
+            List<SQSMessage> records = new ArrayList<>();
+            for (SQSMessage original : recorded.subList(from, Math.min(from + batchSize, recorded.size()))) {
+                SQSMessage msg = new SQSMessage();
+                msg.setMessageId(pass + "/" + original.getMessageId());
+                msg.setBody(original.getBody());
+                records.add(msg);
+            }
+            SQSEvent event = new SQSEvent();
+            event.setRecords(records);
+
+            long start = System.nanoTime();
+            SQSBatchResponse response = ingester.handleRequest(event, new LocalContext("replay", timeoutMs));
+            long nanos = System.nanoTime() - start;
+
+            if (measure) {
+                batchLatenciesNanos.add(nanos);
+                messages += records.size();
+                failures += response.getBatchItemFailures().size();
+            }
+        }
+    }
+
+    private void report(long initNanos, long initPeakHeap, long elapsedNanos, StandInElasticsearch es,
+                        FileSystemS3 s3) {
+        long[] sorted = batchLatenciesNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+
+        System.out.println(String.format(":: Replayed :: %d messages in %d invocations (batches of up to %d), " +
+                "%d failed", messages, sorted.length, batchSize, failures));
+        System.out.println(String.format(":: Init :: %.1fms, peak heap %s", millis(initNanos), mb(initPeakHeap)));
+        System.out.println(String.format(":: Throughput :: %.1f messages/s (%.1fms)",
+                messages / (elapsedNanos / 1e9), millis(elapsedNanos)));
+        String latency = batchSize == 1 ? "Latency per message"
+                : String.format("Latency per batch of up to %d messages", batchSize);
+        System.out.println(String.format(":: %s :: p50 %.1fms, p90 %.1fms, p99 %.1fms, max %.1fms", latency,
+                millis(percentile(sorted, 50)), millis(percentile(sorted, 90)),
+                millis(percentile(sorted, 99)), millis(sorted[sorted.length - 1])));
+        System.out.println(String.format(":: Peak heap :: %s (of %s max)", mb(peakHeap()),
+                mb(Runtime.getRuntime().maxMemory())));
+
+        Map<String, Long> requests = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : es.getRequests().entrySet()) {
+            requests.put(entry.getKey(), entry.getValue().get());
+        }
+        System.out.println(String.format(":: Stand-in Elasticsearch :: requests %s, %d bulk actions, %s received " +
+                "(%s of it gzipped to %s)", requests, es.getBulkActions(), mb(es.getBytesReceived()),
+                mb(es.getGunzippedBytesReceived()), mb(es.getGzippedBytesReceived())));
+        System.out.println(String.format(":: Stand-in S3 :: %d objects read (%s), %d deletes",
+                s3.getGets(), mb(s3.getBytesRead()), s3.getDeletes()));
+    }
+
+    /**
+     * @return The nearest rank percentile of the sorted values
+     */
+    private static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return The sum of the peak use of each heap pool since they were last reset, an upper bound on the peak use
+     *         of the heap as a whole as the pools don't necessarily peak at the same time
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String mb(long bytes) {
+        return String.format("%.1fMB", bytes / (1024.0 * 1024.0));
+    }
+}
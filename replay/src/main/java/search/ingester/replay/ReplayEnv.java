@@ -0,0 +1,28 @@
+package search.ingester.replay;
+
+import search.ingester.Env;
+
+/**
+ * The environment as the ingester would see it, apart from Elasticsearch being the local stand-in. Everything else
+ * (bulk, async, gzip, cache settings etc.) is read from the real environment variables, so a change can be replayed
+ * with and without it turned on
+ */
+public class ReplayEnv extends Env {
+
+    private final String esEndpoint;
+
+    public ReplayEnv(String esEndpoint) {
+        this.esEndpoint = esEndpoint;
+    }
+
+    @Override
+    public String AWS_REGION() { return orDefault(super.AWS_REGION(), "eu-west-1"); }
+    @Override
+    public String ES_ENDPOINT() { return esEndpoint; }
+    @Override
+    public String ES_DOCTYPE() { return orDefault(super.ES_DOCTYPE(), "_doc"); }
+
+    private static String orDefault(String value, String defaultValue) {
+        return value == null || value.trim().isEmpty() ? defaultValue : value;
+    }
+}
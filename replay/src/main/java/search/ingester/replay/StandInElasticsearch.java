@@ -0,0 +1,602 @@
+package search.ingester.replay;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-memory stand-in for Elasticsearch, speaking just enough of the REST API for the ingester; index, delete and
+ * bulk writes, multi get, delete by query and search (both only with match, term or match_all queries on one top
+ * level field) and alias lookups (there are never any aliases). External versions on index and delete writes are
+ * checked, though unlike Elasticsearch nothing is remembered about deleted documents.
+ * Gzipped request bodies are accepted, and each request can be held up for a while to stand in for a real cluster's
+ * latency
+ */
+public class StandInElasticsearch {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMs;
+
+    // documents by ID by index, there's only ever the one type per index in Elasticsearch 6
+    private final Map<String, Map<String, StoredDocument>> indices = new ConcurrentHashMap<>();
+    private final AtomicLong seqNo = new AtomicLong();
+
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final AtomicLong bulkActions = new AtomicLong();
+    // request bodies after any gunzipping, and how many of those bytes came gzipped (and what size they were then)
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong gunzippedBytesReceived = new AtomicLong();
+    private final AtomicLong gzippedBytesReceived = new AtomicLong();
+
+    private static class StoredDocument {
+        final String type;
+        final JsonObject source;
+        final long version;
+
+        StoredDocument(String type, JsonObject source, long version) {
+            this.type = type;
+            this.source = source;
+            this.version = version;
+        }
+    }
+
+    private static class Reply {
+        final int status;
+        final JsonObject body;
+
+        Reply(int status, JsonObject body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * @param threads The number of requests handled at once
+     * @param latencyMs How long each request is held up for before it is handled
+     * @throws IOException Thrown if the server can't listen on a local port
+     */
+    public StandInElasticsearch(int threads, long latencyMs) throws IOException {
+        this.latencyMs = latencyMs;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "stand-in-es");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getEndpoint() {
+        return String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+    }
+
+    /**
+     * @return The number of requests of each kind (index, delete, bulk, mget, delete_by_query, search) handled so far
+     */
+    public Map<String, AtomicLong> getRequests() { return requests; }
+    public long getBulkActions() { return bulkActions.get(); }
+    public long getBytesReceived() { return bytesReceived.get(); }
+    public long getGunzippedBytesReceived() { return gunzippedBytesReceived.get(); }
+    public long getGzippedBytesReceived() { return gzippedBytesReceived.get(); }
+
+    /**
+     * @param index The index to count in
+     * @return The number of documents in the index
+     */
+    public int count(String index) {
+        Map<String, StoredDocument> docs = indices.get(index);
+        return docs == null ? 0 : docs.size();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (latencyMs > 0) {
+                Thread.sleep(latencyMs);
+            }
+
+            String body = readBody(exchange);
+            Reply reply;
+            try {
+                reply = route(exchange.getRequestMethod(), splitPath(exchange.getRequestURI().getRawPath()),
+                        splitQuery(exchange.getRequestURI().getRawQuery()), body);
+            } catch (JsonException | ClassCastException | NullPointerException | NoSuchElementException ex) {
+                reply = error(400, "parse_exception", ex.toString());
+            } catch (RuntimeException ex) {
+                reply = error(500, "exception", ex.toString());
+            }
+
+            byte[] bytes = reply.body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(reply.status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        copy(exchange.getRequestBody(), raw);
+
+        if (!"gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            bytesReceived.addAndGet(raw.size());
+            return new String(raw.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(raw.toByteArray()))) {
+            copy(in, body);
+        }
+        bytesReceived.addAndGet(body.size());
+        gunzippedBytesReceived.addAndGet(body.size());
+        gzippedBytesReceived.addAndGet(raw.size());
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private Reply route(String method, List<String> path, Map<String, String> query, String body) {
+        String last = path.isEmpty() ? "" : path.get(path.size() - 1);
+
+        if (path.isEmpty()) {
+            return new Reply(200, Json.createObjectBuilder()
+                    .add("name", "stand-in")
+                    .add("version", Json.createObjectBuilder().add("number", "6.5.4"))
+                    .build());
+        }
+        if (path.size() == 2 && "_alias".equals(path.get(0)) && "GET".equals(method)) {
+            // there are no aliases here
+            return error(404, "aliases_not_found_exception", String.format("alias [%s] missing", path.get(1)));
+        }
+        if ("_bulk".equals(last) && "POST".equals(method)) {
+            countRequest("bulk");
+            return bulk(path.size() > 1 ? path.get(0) : null, body);
+        }
+        if ("_mget".equals(last) && ("POST".equals(method) || "GET".equals(method))) {
+            countRequest("mget");
+            return multiGet(path.size() > 1 ? path.get(0) : null, parse(body));
+        }
+        if ("_delete_by_query".equals(last) && "POST".equals(method)) {
+            countRequest("delete_by_query");
+            return deleteByQuery(path.get(0), parse(body));
+        }
+        if ("_search".equals(last) && ("POST".equals(method) || "GET".equals(method))) {
+            countRequest("search");
+            return search(path.get(0), body.isEmpty() ? JsonValue.EMPTY_JSON_OBJECT : parse(body));
+        }
+        if (path.size() == 3 && ("PUT".equals(method) || "POST".equals(method))) {
+            countRequest("index");
+            return index(path.get(0), path.get(1), path.get(2), parse(body),
+                    externalVersion(query.get("version"), query.get("version_type")));
+        }
+        if (path.size() == 3 && "DELETE".equals(method)) {
+            countRequest("delete");
+            return delete(path.get(0), path.get(1), path.get(2),
+                    externalVersion(query.get("version"), query.get("version_type")));
+        }
+
+        return error(400, "illegal_argument_exception",
+                String.format("The stand-in doesn't handle %s /%s", method, String.join("/", path)));
+    }
+
+    /**
+     * @param version The external version to write at (the write is refused if the document has a higher one), or
+     *                null to bump the version as normal
+     */
+    private Reply index(String index, String type, String id, JsonObject source, Long version) {
+        boolean[] created = new boolean[1];
+        boolean[] conflict = new boolean[1];
+        StoredDocument doc = indices.computeIfAbsent(index, k -> new ConcurrentHashMap<>()).compute(id, (k, old) -> {
+            if (old != null && version != null && old.version > version) {
+                conflict[0] = true;
+                return old;
+            }
+            created[0] = old == null;
+            return new StoredDocument(type, source, version != null ? version : old == null ? 1 : old.version + 1);
+        });
+
+        if (conflict[0]) {
+            return versionConflict(id, doc.version, version);
+        }
+        return new Reply(created[0] ? 201 : 200,
+                writeResult(index, type, id, doc.version, created[0] ? "created" : "updated").build());
+    }
+
+    private Reply delete(String index, String type, String id, Long version) {
+        Map<String, StoredDocument> docs = indices.get(index);
+        StoredDocument[] deleted = new StoredDocument[1];
+        StoredDocument[] newer = new StoredDocument[1];
+        if (docs != null) {
+            docs.computeIfPresent(id, (k, old) -> {
+                if (version != null && old.version > version) {
+                    newer[0] = old;
+                    return old;
+                }
+                deleted[0] = old;
+                return null;
+            });
+        }
+
+        if (newer[0] != null) {
+            return versionConflict(id, newer[0].version, version);
+        }
+        if (deleted[0] == null) {
+            return new Reply(404, writeResult(index, type, id, version != null ? version : 1, "not_found").build());
+        }
+        return new Reply(200, writeResult(index, type, id, version != null ? version : deleted[0].version + 1,
+                "deleted").build());
+    }
+
+    private static Reply versionConflict(String id, long current, long provided) {
+        return error(409, "version_conflict_engine_exception", String.format("[_doc][%s]: version conflict, " +
+                "current version [%d] is higher than the provided version [%d]", id, current, provided));
+    }
+
+    /**
+     * @return The version of an externally versioned write, or null if the write isn't
+     */
+    private static Long externalVersion(String version, String versionType) {
+        if (version == null || versionType == null || !versionType.startsWith("external")) {
+            return null;
+        }
+        return Long.parseLong(version);
+    }
+
+    private Reply bulk(String defaultIndex, String body) {
+        long start = System.nanoTime();
+        JsonArrayBuilder items = Json.createArrayBuilder();
+        boolean errors = false;
+
+        BufferedReader lines = new BufferedReader(new StringReader(body));
+        try {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+
+                JsonObject action = parse(line);
+                String op = action.keySet().iterator().next();
+                JsonObject meta = action.getJsonObject(op);
+                String index = meta.getString("_index", defaultIndex);
+                String type = meta.getString("_type", "_doc");
+                String id = meta.getString("_id", null);
+                Long version = meta.containsKey("version") ? externalVersion(
+                        meta.get("version").toString(), meta.getString("version_type", null)) : null;
+
+                Reply reply;
+                switch (op) {
+                case "index":
+                case "create":
+                    reply = index(index, type, id, parse(lines.readLine()), version);
+                    break;
+                case "delete":
+                    reply = delete(index, type, id, version);
+                    break;
+                default:
+                    // skip the update's body
+                    lines.readLine();
+                    reply = error(400, "illegal_argument_exception",
+                            String.format("The stand-in doesn't handle bulk %s actions", op));
+                }
+
+                JsonObjectBuilder item = Json.createObjectBuilder(reply.body).add("status", reply.status);
+                if (reply.status >= 400 && reply.status != 404) {
+                    errors = true;
+                    item = Json.createObjectBuilder()
+                            .add("_index", index)
+                            .add("_type", type)
+                            .add("_id", id == null ? "" : id)
+                            .add("status", reply.status)
+                            .add("error", reply.body.getJsonObject("error"));
+                }
+                items.add(Json.createObjectBuilder().add(op, item));
+                bulkActions.incrementAndGet();
+            }
+        } catch (IOException ex) {
+            return error(400, "parse_exception", ex.toString());
+        }
+
+        return new Reply(200, Json.createObjectBuilder()
+                .add("took", (System.nanoTime() - start) / 1000000)
+                .add("errors", errors)
+                .add("items", items)
+                .build());
+    }
+
+    private Reply multiGet(String defaultIndex, JsonObject body) {
+        JsonArrayBuilder docs = Json.createArrayBuilder();
+
+        for (JsonValue value : body.getJsonArray("docs")) {
+            JsonObject item = (JsonObject) value;
+            String index = item.getString("_index", defaultIndex);
+            String id = item.getString("_id");
+            String type = item.getString("_type", "_doc");
+
+            Map<String, StoredDocument> stored = indices.get(index);
+            StoredDocument doc = stored == null ? null : stored.get(id);
+
+            JsonObjectBuilder result = Json.createObjectBuilder()
+                    .add("_index", index)
+                    .add("_type", doc == null ? type : doc.type)
+                    .add("_id", id);
+            if (doc == null) {
+                result.add("found", false);
+            } else {
+                result.add("_version", doc.version).add("found", true);
+                JsonObject source = filterSource(doc.source, sourceIncludes(item.get("_source")));
+                if (source != null) {
+                    result.add("_source", source);
+                }
+            }
+            docs.add(result);
+        }
+
+        return new Reply(200, Json.createObjectBuilder().add("docs", docs).build());
+    }
+
+    private Reply deleteByQuery(String index, JsonObject body) {
+        long start = System.nanoTime();
+        JsonObject query = body.containsKey("query") ? body.getJsonObject("query") : null;
+
+        long deleted = 0;
+        Map<String, StoredDocument> docs = indices.get(index);
+        if (docs != null) {
+            for (Map.Entry<String, StoredDocument> entry : docs.entrySet()) {
+                if (matches(query, entry.getValue().source) && docs.remove(entry.getKey(), entry.getValue())) {
+                    deleted++;
+                }
+            }
+        }
+
+        return new Reply(200, Json.createObjectBuilder()
+                .add("took", (System.nanoTime() - start) / 1000000)
+                .add("timed_out", false)
+                .add("total", deleted)
+                .add("updated", 0)
+                .add("created", 0)
+                .add("deleted", deleted)
+                .add("batches", 1)
+                .add("version_conflicts", 0)
+                .add("noops", 0)
+                .add("retries", Json.createObjectBuilder().add("bulk", 0).add("search", 0))
+                .add("throttled_millis", 0)
+                .add("requests_per_second", -1.0)
+                .add("throttled_until_millis", 0)
+                .add("failures", Json.createArrayBuilder())
+                .build());
+    }
+
+    private Reply search(String index, JsonObject body) {
+        long start = System.nanoTime();
+        JsonObject query = body.containsKey("query") ? body.getJsonObject("query") : null;
+        int size = body.containsKey("size") ? body.getInt("size") : 10;
+        List<String> includes = sourceIncludes(body.get("_source"));
+
+        JsonArrayBuilder hits = Json.createArrayBuilder();
+        long total = 0;
+        Map<String, StoredDocument> docs = indices.get(index);
+        if (docs != null) {
+            for (Map.Entry<String, StoredDocument> entry : docs.entrySet()) {
+                if (!matches(query, entry.getValue().source)) {
+                    continue;
+                }
+                if (total++ < size) {
+                    JsonObjectBuilder hit = Json.createObjectBuilder()
+                            .add("_index", index)
+                            .add("_type", entry.getValue().type)
+                            .add("_id", entry.getKey())
+                            .add("_score", 1.0);
+                    JsonObject source = filterSource(entry.getValue().source, includes);
+                    if (source != null) {
+                        hit.add("_source", source);
+                    }
+                    hits.add(hit);
+                }
+            }
+        }
+
+        return new Reply(200, Json.createObjectBuilder()
+                .add("took", (System.nanoTime() - start) / 1000000)
+                .add("timed_out", false)
+                .add("_shards", shards(1))
+                .add("hits", Json.createObjectBuilder()
+                        .add("total", total)
+                        .add("max_score", 1.0)
+                        .add("hits", hits))
+                .build());
+    }
+
+    /**
+     * @param query A match, term or match_all query (on one top level field), or null for everything
+     * @param source The document to check
+     * @return Whether the document matches, other queries are rejected
+     */
+    private static boolean matches(JsonObject query, JsonObject source) {
+        if (query == null || query.containsKey("match_all")) {
+            return true;
+        }
+
+        String kind = query.containsKey("match") ? "match" : query.containsKey("term") ? "term" : null;
+        if (kind == null) {
+            throw new JsonException(String.format("The stand-in doesn't handle the query %s", query));
+        }
+
+        JsonObject clause = query.getJsonObject(kind);
+        String field = clause.keySet().iterator().next();
+        JsonValue expected = clause.get(field);
+        if (expected.getValueType() == JsonValue.ValueType.OBJECT) {
+            expected = ((JsonObject) expected).get("match".equals(kind) ? "query" : "value");
+        }
+
+        JsonValue actual = source.get(field);
+        return actual != null && text(actual).equals(text(expected));
+    }
+
+    private static String text(JsonValue value) {
+        return value instanceof JsonString ? ((JsonString) value).getString() : value.toString();
+    }
+
+    /**
+     * @return The top level fields to include from _source, an empty list for none, or null for all of them
+     */
+    private static List<String> sourceIncludes(JsonValue source) {
+        if (source == null || source == JsonValue.TRUE) {
+            return null;
+        }
+        if (source == JsonValue.FALSE) {
+            return new ArrayList<>();
+        }
+
+        JsonValue includes = source;
+        if (source.getValueType() == JsonValue.ValueType.OBJECT) {
+            includes = ((JsonObject) source).get("includes");
+            if (includes == null || ((JsonArray) includes).isEmpty()) {
+                return null;
+            }
+        }
+
+        List<String> fields = new ArrayList<>();
+        if (includes.getValueType() == JsonValue.ValueType.ARRAY) {
+            for (JsonValue field : (JsonArray) includes) {
+                fields.add(text(field));
+            }
+        } else {
+            fields.add(text(includes));
+        }
+        return fields;
+    }
+
+    private static JsonObject filterSource(JsonObject source, List<String> includes) {
+        if (includes == null) {
+            return source;
+        }
+        if (includes.isEmpty()) {
+            return null;
+        }
+
+        JsonObjectBuilder filtered = Json.createObjectBuilder();
+        for (String field : includes) {
+            if (source.containsKey(field)) {
+                filtered.add(field, source.get(field));
+            }
+        }
+        return filtered.build();
+    }
+
+    private JsonObjectBuilder writeResult(String index, String type, String id, long version, String result) {
+        return Json.createObjectBuilder()
+                .add("_index", index)
+                .add("_type", type)
+                .add("_id", id)
+                .add("_version", version)
+                .add("result", result)
+                .add("_shards", shards(2))
+                .add("_seq_no", seqNo.incrementAndGet())
+                .add("_primary_term", 1);
+    }
+
+    private static JsonObjectBuilder shards(int total) {
+        return Json.createObjectBuilder()
+                .add("total", total)
+                .add("successful", 1)
+                .add("skipped", 0)
+                .add("failed", 0);
+    }
+
+    private static Reply error(int status, String type, String reason) {
+        return new Reply(status, Json.createObjectBuilder()
+                .add("error", Json.createObjectBuilder()
+                        .add("type", type)
+                        .add("reason", reason))
+                .add("status", status)
+                .build());
+    }
+
+    private void countRequest(String kind) {
+        requests.computeIfAbsent(kind, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static JsonObject parse(String json) {
+        if (json == null) {
+            throw new JsonException("Missing request body");
+        }
+        try (JsonReader reader = Json.createReader(new StringReader(json))) {
+            return reader.readObject();
+        }
+    }
+
+    private static List<String> splitPath(String rawPath) throws UnsupportedEncodingException {
+        List<String> segments = new ArrayList<>();
+        for (String segment : rawPath.split("/")) {
+            if (!segment.isEmpty()) {
+                // a + in a path is just a +, URLDecoder would make it a space
+                segments.add(URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8"));
+            }
+        }
+        return segments;
+    }
+
+    private static Map<String, String> splitQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String param : rawQuery.split("&")) {
+            String[] parts = param.split("=", 2);
+            params.put(URLDecoder.decode(parts[0], "UTF-8"),
+                    parts.length == 2 ? URLDecoder.decode(parts[1], "UTF-8") : "");
+        }
+        return params;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+}
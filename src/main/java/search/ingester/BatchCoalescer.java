@@ -0,0 +1,104 @@
+package search.ingester;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+
+import search.ingester.models.Message;
+
+/**
+ * Finds the messages in a batch that are made pointless by a newer message for the same document (the same index and
+ * document ID). Whatever the newest upsert or delete of a document is, it leaves the document (and any datahub
+ * resources) as if it had been the only one, so the older ones needn't be processed at all. Messages are ordered by
+ * their version when two for the same document both have one, otherwise by when they were sent to SQS, or by their
+ * place in the batch if that isn't known. Messages on S3 aren't looked at, as their document isn't known without
+ * fetching them
+ */
+public class BatchCoalescer {
+
+    private static final String SENT_TIMESTAMP = "SentTimestamp";
+
+    private BatchCoalescer() {
+    }
+
+    /**
+     * @param records The records in the batch, in the order they came in
+     * @param messages The deserialized message of each record keyed by SQS message ID, records that couldn't be
+     *                 deserialized are left out
+     * @return The ID of the message that supersedes each superseded message, keyed by the superseded message's ID
+     */
+    public static Map<String, String> findSuperseded(List<SQSMessage> records, Map<String, Message> messages) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            order.add(i);
+        }
+        // a stable sort, so messages sent in the same millisecond (or without a timestamp) keep their batch order
+        order.sort(Comparator.comparingLong(i -> sentTimestamp(records.get(i))));
+
+        Map<String, String> newest = new HashMap<>();
+        List<String[]> older = new ArrayList<>();
+        for (int i : order) {
+            String messageId = records.get(i).getMessageId();
+            String key = getDocumentKey(messages.get(messageId));
+            if (key == null) {
+                continue;
+            }
+
+            String previous = newest.get(key);
+            if (previous != null && isOlderVersion(messages.get(messageId), messages.get(previous))) {
+                // sent later but an older version, so it's the one that's superseded
+                older.add(new String[] { messageId, key });
+                continue;
+            }
+
+            newest.put(key, messageId);
+            if (previous != null) {
+                older.add(new String[] { previous, key });
+            }
+        }
+
+        Map<String, String> superseded = new LinkedHashMap<>();
+        for (String[] entry : older) {
+            superseded.put(entry[0], newest.get(entry[1]));
+        }
+        return superseded;
+    }
+
+    /**
+     * @return The index and ID of the document an upsert or delete message is for, or null if it isn't one
+     */
+    private static String getDocumentKey(Message message) {
+        if (message == null || message.getDocument() == null || message.getDocument().getId() == null
+                || message.getIndex() == null) {
+            return null;
+        }
+        if (!"upsert".equals(message.getVerb()) && !"delete".equals(message.getVerb())) {
+            return null;
+        }
+        return message.getIndex() + "/" + message.getDocument().getId();
+    }
+
+    private static boolean isOlderVersion(Message message, Message than) {
+        return message.getVersion() != null && than.getVersion() != null && message.getVersion() < than.getVersion();
+    }
+
+    /**
+     * @return When the record was sent to SQS (epoch millis), or 0 if it isn't known so the batch order is kept
+     */
+    private static long sentTimestamp(SQSMessage record) {
+        Map<String, String> attributes = record.getAttributes();
+        String sent = attributes == null ? null : attributes.get(SENT_TIMESTAMP);
+        if (sent == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(sent);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
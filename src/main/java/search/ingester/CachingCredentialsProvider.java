@@ -0,0 +1,39 @@
+package search.ingester;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+
+/**
+ * Holds on to the credentials from another provider for a while, so signing a request doesn't have to go back
+ * through the whole default provider chain every time. The signer caches the signing key it derives for a set of
+ * credentials, so handing it the same credentials object also means the key gets reused
+ */
+public class CachingCredentialsProvider implements AWSCredentialsProvider {
+
+    private final AWSCredentialsProvider delegate;
+    private final long refreshMillis;
+
+    private AWSCredentials credentials;
+    private long fetchedAt;
+
+    public CachingCredentialsProvider(AWSCredentialsProvider delegate, long refreshMillis) {
+        this.delegate = delegate;
+        this.refreshMillis = refreshMillis;
+    }
+
+    @Override
+    public synchronized AWSCredentials getCredentials() {
+        long now = System.currentTimeMillis();
+        if (credentials == null || now - fetchedAt >= refreshMillis) {
+            credentials = delegate.getCredentials();
+            fetchedAt = now;
+        }
+        return credentials;
+    }
+
+    @Override
+    public synchronized void refresh() {
+        delegate.refresh();
+        credentials = null;
+    }
+}
@@ -0,0 +1,69 @@
+package search.ingester;
+
+import java.io.InputStream;
+
+/**
+ * Reads a CharSequence of single byte (i.e. ASCII, like base64) characters as a stream of bytes, without copying it
+ * into a byte array first. Any character above 0xFF is truncated to its low byte, so this is only for text that is
+ * known to be ASCII
+ */
+public class CharSequenceInputStream extends InputStream {
+
+    private final CharSequence chars;
+    private int pos = 0;
+    private int mark = 0;
+
+    public CharSequenceInputStream(CharSequence chars) {
+        this.chars = chars;
+    }
+
+    @Override
+    public int read() {
+        return pos < chars.length() ? chars.charAt(pos++) & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        int remaining = chars.length() - pos;
+        if (remaining <= 0) {
+            return -1;
+        }
+
+        int n = Math.min(len, remaining);
+        for (int i = 0; i < n; i++) {
+            b[off + i] = (byte) chars.charAt(pos++);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, chars.length() - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return chars.length() - pos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = pos;
+    }
+
+    @Override
+    public synchronized void reset() {
+        pos = mark;
+    }
+}
@@ -0,0 +1,49 @@
+package search.ingester;
+
+/**
+ * Stops requests being sent to an overloaded cluster. After a run of failed requests the breaker opens and no
+ * requests should be sent until it has been open for a while, then requests are let through again, a success closes
+ * the breaker and another failure opens it again straight away
+ */
+public class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+
+    /**
+     * @param failureThreshold How many failures in a row open the breaker
+     * @param openMillis How long the breaker stays open for
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return How long until requests can be sent again, 0 if they can be sent now
+     */
+    public synchronized long getMillisUntilClosed() {
+        if (consecutiveFailures < failureThreshold) {
+            return 0;
+        }
+        return Math.max(0, openedAt + openMillis - System.currentTimeMillis());
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (consecutiveFailures == failureThreshold) {
+            System.out.println(String.format(":: Elasticsearch looks overloaded, pausing requests for %dms ::",
+                    openMillis));
+        }
+        if (consecutiveFailures >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package search.ingester;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import javax.validation.ValidatorFactory;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+import search.ingester.cache.DiskExtractionCache;
+import search.ingester.cache.ExtractionCache;
+import search.ingester.cache.MemoryExtractionCache;
+import search.ingester.cache.TieredExtractionCache;
+import search.ingester.metrics.Metrics;
+import search.ingester.models.Document;
+import search.ingester.models.Message;
+
+/**
+ * Holds everything the ingester needs to process messages. It is built once per Lambda execution environment (during
+ * the init phase, when the handler is created) and then shared by every invocation, so all of these need to be safe
+ * to share; Jsonb, the Validator and the Elasticsearch client are thread-safe, and Processor, ElasticService and
+ * FileParser don't keep any per-message state of their own
+ */
+public class Components {
+
+    // a one page PDF saying "Warm up", the xref offsets need fixing if this is ever edited
+    static final String WARM_UP_PDF = "%PDF-1.4\n" +
+            "1 0 obj<</Type/Catalog/Pages 2 0 R>> endobj\n" +
+            "2 0 obj<</Type/Pages/Kids[3 0 R]/Count 1>> endobj\n" +
+            "3 0 obj<</Type/Page/Parent 2 0 R/MediaBox[0 0 200 50]/Contents 4 0 R" +
+            "/Resources<</Font<</F1 5 0 R>>>>>> endobj\n" +
+            "4 0 obj<</Length 37>>stream\nBT /F1 12 Tf 10 20 Td (Warm up) Tj ET\nendstream endobj\n" +
+            "5 0 obj<</Type/Font/Subtype/Type1/BaseFont/Helvetica>> endobj\n" +
+            "xref\n0 6\n0000000000 65535 f \n0000000009 00000 n \n0000000053 00000 n \n0000000103 00000 n \n" +
+            "0000000213 00000 n \n0000000296 00000 n \n" +
+            "trailer<</Size 6/Root 1 0 R>>\nstartxref\n358\n%%EOF\n";
+
+    private static Components instance;
+
+    private final Env env;
+    private final Jsonb jsonb;
+    private final Validator validator;
+    private final FileParser fileParser;
+    private final ElasticService elasticService;
+    private final ExecutorService resourceExecutor;
+    private final Processor processor;
+
+    // Only set up if we need to read an S3 message, otherwise left as null
+    private AmazonS3 s3Client;
+
+    public Components(Env env) {
+        this(env, null);
+    }
+
+    /**
+     * @param env The environment to configure everything from
+     * @param s3Client The S3 client to read S3 messages with, or null to create one from the environment when needed
+     */
+    public Components(Env env, AmazonS3 s3Client) {
+        this.env = env;
+        this.s3Client = s3Client;
+        this.jsonb = JsonbBuilder.create();
+        ValidatorFactory validatorFactory = Validation.buildDefaultValidatorFactory();
+        this.validator = validatorFactory.getValidator();
+        this.fileParser = new FileParser(createExtractionCache(env),
+                new ParseLimits(env.TIKA_MAX_CHARS(), env.TIKA_MAX_INPUT_BYTES(), env.TIKA_PARSE_TIMEOUT_MS()),
+                new ParserRegistry(env.TIKA_PARSERS(), env.TIKA_FALLBACK_PARSER_ENABLED()),
+                env.TIKA_MAX_CONCURRENT_PARSES());
+        this.elasticService = new ElasticService(env, jsonb);
+        this.resourceExecutor = createResourceExecutor(env.RESOURCE_PREP_THREADS());
+        this.processor = new Processor(elasticService, fileParser, validator, resourceExecutor,
+                env.RESOURCE_SYNC_ENABLED());
+    }
+
+    /**
+     * Creates the cache of Tika extraction results from the configured tiers, memory first and then disk
+     *
+     * @param env The environment to configure the cache from
+     * @return The cache, or null if no tiers are configured
+     */
+    private static ExtractionCache createExtractionCache(Env env) {
+        List<ExtractionCache> tiers = new ArrayList<>();
+
+        if (env.EXTRACTION_CACHE_MEMORY_BYTES() > 0) {
+            tiers.add(new MemoryExtractionCache(env.EXTRACTION_CACHE_MEMORY_BYTES()));
+        }
+
+        if (env.EXTRACTION_CACHE_DIR() != null && env.EXTRACTION_CACHE_DISK_BYTES() > 0) {
+            try {
+                tiers.add(new DiskExtractionCache(DiskExtractionCache.checkDir(env.EXTRACTION_CACHE_DIR()),
+                        env.EXTRACTION_CACHE_DISK_BYTES()));
+            } catch (IOException | IllegalArgumentException ex) {
+                System.out.println(String.format(":: Couldn't set up the extraction cache in %s, not using it :: %s",
+                        env.EXTRACTION_CACHE_DIR(), ex));
+            }
+        }
+
+        if (tiers.isEmpty()) {
+            return null;
+        }
+        return tiers.size() == 1 ? tiers.get(0) : new TieredExtractionCache(tiers);
+    }
+
+    /**
+     * Creates the fixed size pool that datahub resources are prepared on, the threads are daemons so that they never
+     * hold the JVM open
+     *
+     * @param threads The number of threads, 1 or less means resources are prepared on the handler thread instead
+     * @return The executor, or null if resources shouldn't be prepared in parallel
+     */
+    private static ExecutorService createResourceExecutor(int threads) {
+        if (threads <= 1) {
+            return null;
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "resource-prep-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+
+    /**
+     * Returns the shared components for this execution environment, creating and warming them up the first time
+     *
+     * @return The shared components
+     */
+    public static synchronized Components get() {
+        if (instance == null) {
+            long start = System.currentTimeMillis();
+
+            Components components = new Components(new Env());
+            components.warmUp();
+            // the warm up shouldn't count towards the first invocation's metrics
+            Metrics.reset();
+            instance = components;
+
+            System.out.println(String.format(":: Components initialised in %dms ::", System.currentTimeMillis() - start));
+        }
+
+        return instance;
+    }
+
+    /**
+     * Runs a sample message through Jsonb and the Validator so that their (expensive) per-class metadata is built
+     * before the first real message turns up, and primes the rest of the hot path the same way; a tiny PDF through
+     * Tika (the PDF parser is by far the slowest to load) and the Elasticsearch client setup. Anything that goes
+     * wrong here is left for the first message to run into
+     */
+    public void warmUp() {
+        String sample = "{\"index\": \"warmup\", \"verb\": \"upsert\", " +
+                "\"document\": {\"id\": \"warmup\", \"site\": \"website\", \"title\": \"Warm up\", " +
+                "\"keywords\": [{\"vocab\": \"warmup\", \"value\": \"warmup\"}], \"content\": \"Warm up\", " +
+                "\"url\": \"https://example.com\", \"published_date\": \"2019-01-01\"}, " +
+                "\"resources\": [{\"title\": \"Warm up\", \"content\": \"Warm up\"}]}";
+
+        Message message = jsonb.fromJson(sample, Message.class);
+        Document doc = message.getDocument();
+        DocumentTweaker.setContentTruncatedField(doc);
+        DocumentTweaker.setTimestamp(doc);
+
+        validator.validate(doc);
+        validator.validate(message.getResources().get(0));
+        jsonb.toJson(doc);
+
+        try {
+            Document file = message.getResources().get(0);
+            file.setFileBase64(Base64.getEncoder().encodeToString(WARM_UP_PDF.getBytes(StandardCharsets.US_ASCII)));
+            file.setFileExtension("pdf");
+            fileParser.withoutCache().parseFile(file);
+
+            elasticService.warmUp(doc);
+        } catch (Exception ex) {
+            System.out.println(String.format(":: Warm up failed, carrying on without it :: %s", ex));
+        }
+    }
+
+    /**
+     * Builds and warms up the components without any environment and exits, so that the classes loaded along the way
+     * can be listed for the AppCDS archive (see the appcds profile in the pom)
+     */
+    public static void main(String[] args) {
+        get();
+        // the Elasticsearch client's threads (if there's an endpoint) would otherwise keep the JVM running
+        System.exit(0);
+    }
+
+    public Env getEnv() { return env; }
+    public Jsonb getJsonb() { return jsonb; }
+    public Validator getValidator() { return validator; }
+    public FileParser getFileParser() { return fileParser; }
+    public ElasticService getElasticService() { return elasticService; }
+    public Processor getProcessor() { return processor; }
+
+    /**
+     * Returns a configured S3 client using environment variables / default provider chains, created the first time
+     * it is needed
+     *
+     * @return A configured S3 client
+     */
+    public synchronized AmazonS3 getS3Client() {
+        if (s3Client == null) {
+            s3Client = AmazonS3ClientBuilder.standard()
+                    .withRegion(env.AWS_REGION())
+                    .withCredentials(new DefaultAWSCredentialsProviderChain())
+                    .build();
+        }
+
+        return s3Client;
+    }
+}
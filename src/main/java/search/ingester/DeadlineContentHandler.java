@@ -0,0 +1,69 @@
+package search.ingester;
+
+import org.apache.tika.sax.ContentHandlerDecorator;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Stops a Tika parse once a deadline has passed (or the parsing thread has been interrupted), by throwing from the
+ * next SAX event. This only works while the parser is producing events, so it is backed up by a timeout on the
+ * parse as a whole
+ */
+public class DeadlineContentHandler extends ContentHandlerDecorator {
+
+    private final long deadlineNanos;
+
+    /**
+     * @param handler The handler to pass events on to
+     * @param deadlineNanos When to stop, in terms of System.nanoTime
+     */
+    public DeadlineContentHandler(ContentHandler handler, long deadlineNanos) {
+        super(handler);
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String name, Attributes atts) throws SAXException {
+        checkDeadline();
+        super.startElement(uri, localName, name, atts);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        checkDeadline();
+        super.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        checkDeadline();
+        super.ignorableWhitespace(ch, start, length);
+    }
+
+    private void checkDeadline() throws SAXException {
+        if (System.nanoTime() - deadlineNanos > 0 || Thread.currentThread().isInterrupted()) {
+            throw new DeadlineReachedException();
+        }
+    }
+
+    /**
+     * @param t Something thrown by a parse
+     * @return Whether it was thrown because the deadline passed
+     */
+    public static boolean isDeadlineReached(Throwable t) {
+        while (t != null) {
+            if (t instanceof DeadlineReachedException) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    public static class DeadlineReachedException extends SAXException {
+        public DeadlineReachedException() {
+            super("Parse deadline reached");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package search.ingester;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import search.ingester.models.Document;
+import search.ingester.models.Keyword;
+
+public class DocumentFingerprint {
+
+    // bump this whenever the way a document is prepared changes (e.g. a new Tika version), so that everything gets
+    // reindexed rather than skipped as unchanged. 2: content capped at TIKA_MAX_CHARS and only the configured Tika
+    // parsers used for each format
+    private static final String VERSION = "2";
+
+    /**
+     * Computes a fingerprint over all the fields of an incoming document that end up in the index, i.e. everything
+     * but the timestamp and the fields derived from the others. It has to be computed before the document is
+     * prepared, as preparing it replaces the attached file with its extracted content
+     *
+     * @param doc The incoming document
+     * @return A hex encoded SHA-256 hash of the document's fields
+     */
+    public static String compute(Document doc) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        byte[] buffer = new byte[8 * 1024];
+
+        update(digest, buffer, VERSION);
+        update(digest, buffer, doc.getId());
+        update(digest, buffer, doc.getSite());
+        update(digest, buffer, doc.getTitle());
+        update(digest, buffer, doc.getUrl());
+        update(digest, buffer, doc.getContent());
+        update(digest, buffer, doc.getFileBase64());
+        update(digest, buffer, doc.getFileBytes() == null ? null : doc.getFileBytes().toString());
+        update(digest, buffer, doc.getFileExtension());
+        update(digest, buffer, doc.getResourceType());
+        update(digest, buffer, doc.getPublishedDate());
+        update(digest, buffer, doc.getParentId());
+        update(digest, buffer, doc.getParentTitle());
+        update(digest, buffer, doc.getParentResourceType());
+
+        if (doc.getKeywords() != null) {
+            for (Keyword keyword : doc.getKeywords()) {
+                update(digest, buffer, keyword.getVocab());
+                update(digest, buffer, keyword.getValue());
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Adds a (possibly multi-megabyte) string to the digest a chunk at a time, as UTF-16 chars so there's no need to
+     * encode a copy of the whole string first. Each value is prefixed with its length so that values can't run into
+     * each other, and null is distinguished from empty
+     */
+    private static void update(MessageDigest digest, byte[] buffer, String value) {
+        int length = value == null ? -1 : value.length();
+        digest.update(new byte[] {
+                (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length });
+
+        if (value == null) {
+            return;
+        }
+
+        int n = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            buffer[n++] = (byte) (c >>> 8);
+            buffer[n++] = (byte) c;
+
+            if (n == buffer.length) {
+                digest.update(buffer, 0, n);
+                n = 0;
+            }
+        }
+        digest.update(buffer, 0, n);
+    }
+}
@@ -1,31 +1,71 @@
 package search.ingester;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.UUID;
+import org.apache.commons.lang3.StringUtils;
 import search.ingester.models.Document;
 
 public class DocumentTweaker {
+
+    private static final int CONTENT_TRUNCATED_LENGTH = 200;
     
     public static void setContentTruncatedField(Document doc) {
         
         // we populate the content_truncated field because that's what we actually show
         // in the search results (when not using highlights).
 
+        // the first 200 characters of the content with newlines removed and trimmed, with "..." on the end if
+        // there's more, worked out without copying (or even looking at) the rest of the content which can be
+        // megabytes long
+
         String c = doc.getContent();
-    
-        c = c.replace("\n", ""); // remove newlines
-        c = c.trim();            // trim leading and trailing whitespace
-    
-        String truncated = c.substring(0, Math.min(c.length(), 200));
-    
-        if (c.length() > truncated.length()) {
-            c = truncated + "...";
+
+        // trim leading and trailing whitespace, newlines included
+        int end = c.length();
+        while (end > 0 && c.charAt(end - 1) <= ' ') {
+            end--;
         }
-    
-        doc.setContentTruncated(c);
+        int i = 0;
+        while (i < end && c.charAt(i) <= ' ') {
+            i++;
+        }
+
+        // remove newlines
+        StringBuilder truncated = new StringBuilder(CONTENT_TRUNCATED_LENGTH + 3);
+        for (; i < end && truncated.length() < CONTENT_TRUNCATED_LENGTH; i++) {
+            if (c.charAt(i) != '\n') {
+                truncated.append(c.charAt(i));
+            }
+        }
+
+        // anything left over (apart from newlines) means the content was cut short
+        for (; i < end; i++) {
+            if (c.charAt(i) != '\n') {
+                truncated.append("...");
+                break;
+            }
+        }
+
+        doc.setContentTruncated(truncated.toString());
     }
 
     public static void setTimestamp(Document doc) {
         // an ISO date-time string
         doc.setTimestampUtc(Instant.now().toString());
     }
+
+    public static void setStableResourceId(Document resource, Document parent, int occurrence) {
+        // elasticsearch needs an ID but an ID of a "resource" is never really surfaced, so derive one from the
+        // parent and the resource's url (or title if it has no url) which stays the same every time the parent is
+        // republished. occurrence tells apart resources of the same parent with the same url / title
+        String name = String.format("resource:%s:%s:%d", parent.getId(), getResourceIdentity(resource), occurrence);
+
+        // a UUID as the parent_id pattern expects resources' parents to have UUIDs too
+        resource.setId(UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString());
+    }
+
+    public static String getResourceIdentity(Document resource) {
+        return StringUtils.isNotBlank(resource.getUrl()) ? resource.getUrl() : resource.getTitle();
+    }
 }
@@ -1,35 +1,163 @@
 package search.ingester;
 
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import javax.json.bind.Jsonb;
 import javax.json.bind.JsonbBuilder;
 import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.http.AWSRequestSigningApacheInterceptor;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.VersionType;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import search.ingester.metrics.Metrics;
+import search.ingester.metrics.Stage;
 import search.ingester.models.Document;
 
 public class ElasticService {
 
     private Env env;
+    private Jsonb jsonb;
+    // only set when request compression is turned on
+    private RequestCompression compression;
+    private RetryPolicy retryPolicy;
+    private CircuitBreaker circuitBreaker;
+    private IndexRouter router;
+    private boolean skipUnchanged;
+
+    // async requests are retried from the http client's threads, which mustn't be slept on, so the retries are
+    // scheduled here instead
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "es-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
     private static RestHighLevelClient esClient;
 
+    // the default index.max_result_window, no datahub record gets anywhere near this many resources
+    private static final int MAX_CHILDREN = 10000;
+
+    // a single ElasticService is shared by everything in the execution environment, so batches are tracked per
+    // thread, only set while a batch is in progress, otherwise every write is sent straight away
+    private final ThreadLocal<BatchState> batchState = new ThreadLocal<>();
+
+    private static class BatchState {
+        // bulk mode gathers up index / delete requests into bulk requests
+        final boolean bulk;
+        BulkRequest pendingBulk = new BulkRequest();
+        // which owner (i.e. SQS message) each pending bulk action came from, so a failed item can be traced back
+        List<String> pendingOwners = new ArrayList<>();
+        // and the fingerprint of the document each pending index action writes (null for deletes)
+        List<String> pendingFingerprints = new ArrayList<>();
+
+        // how many writes each document (index/id) has had in this batch, only a document written once can be
+        // skipped as unchanged, otherwise what's in the index might be from an earlier write (maybe still in flight)
+        final Map<String, Integer> writes = new HashMap<>();
+
+        // async mode sends requests without waiting for the response, with a limit on how many can be in flight
+        final boolean async;
+        final int maxInFlight;
+        final Semaphore inFlight;
+        // the documents (index/id) with a write in flight, added to from the http client's threads
+        final Set<String> inFlightDocs = ConcurrentHashMap.newKeySet();
+
+        // retries aren't started if they couldn't finish before this (epoch millis)
+        final long deadline;
+
+        String owner;
+        // added to from the http client's threads in async mode
+        final Set<String> failedOwners = Collections.synchronizedSet(new LinkedHashSet<>());
+
+        BatchState(boolean bulk, boolean async, int maxInFlight, long deadline) {
+            this.bulk = bulk;
+            this.deadline = deadline;
+            this.async = async;
+            this.maxInFlight = maxInFlight;
+            this.inFlight = new Semaphore(maxInFlight);
+        }
+
+        void fail(String owner, String error) {
+            System.out.println(String.format(":: Write failed for %s :: %s", owner, error));
+            failedOwners.add(owner);
+        }
+    }
 
     public ElasticService(Env env) {
+        this(env, JsonbBuilder.create());
+    }
+
+    public ElasticService(Env env, Jsonb jsonb) {
         this.env = env;
+        this.jsonb = jsonb;
+        if (env.ES_GZIP_ENABLED()) {
+            this.compression = new RequestCompression(env.ES_GZIP_MIN_BYTES());
+        }
+        this.retryPolicy = new RetryPolicy(env.ES_RETRY_MAX_ATTEMPTS(), env.ES_RETRY_BASE_DELAY_MS(),
+                env.ES_RETRY_MAX_DELAY_MS());
+        this.circuitBreaker = new CircuitBreaker(env.ES_CIRCUIT_BREAKER_FAILURES(), env.ES_CIRCUIT_BREAKER_OPEN_MS());
+        this.skipUnchanged = env.SKIP_UNCHANGED_ENABLED();
+        this.router = new IndexRouter(IndexRouter.parseRoutes(env.INDEX_ROUTES()), env.INDEX_ALIAS_CACHE_TTL_MS(),
+                this::lookupAlias);
+    }
+
+    public RequestCompression getRequestCompression() {
+        return compression;
     }
 
     /**
@@ -38,19 +166,22 @@ public class ElasticService {
      *
      * @return A Configured High Level Elasticsearch REST client to send packets to an AWS ES service
      */
-    private static RestHighLevelClient getEsClient(Env env) {
+    private static synchronized RestHighLevelClient getEsClient(Env env) {
         RestHighLevelClient client = ElasticService.esClient;
 
         if (client == null) {
             String awsServiceName = "es";
+            // one signer and one set of cached credentials for the life of the client, so the signer's cache of
+            // derived signing keys actually gets hit rather than a key being worked out for every request
             AWS4Signer signer = new AWS4Signer();
             signer.setServiceName(awsServiceName);
             signer.setRegionName(env.AWS_REGION());
+            AWSCredentialsProvider credentials = new CachingCredentialsProvider(
+                    DefaultAWSCredentialsProviderChain.getInstance(), env.ES_CREDENTIALS_REFRESH_MS());
             HttpRequestInterceptor interceptor =
-                    new AWSRequestSigningApacheInterceptor(awsServiceName, signer, new DefaultAWSCredentialsProviderChain());
-            client = new RestHighLevelClient(
-                    RestClient.builder(HttpHost.create(env.ES_ENDPOINT()))
-                            .setHttpClientConfigCallback(callback -> callback.addInterceptorLast(interceptor)));
+                    new AWSRequestSigningApacheInterceptor(awsServiceName, signer, credentials);
+            client = new RestHighLevelClient(configureTransport(
+                    RestClient.builder(HttpHost.create(env.ES_ENDPOINT())), env, interceptor));
 
             ElasticService.esClient = client;
         }
@@ -58,47 +189,1142 @@ public class ElasticService {
         return client;
     }
 
+    /**
+     * Sets up the Elasticsearch client (its connection pool, signer and credentials) if there's an endpoint to point
+     * it at, then writes out a sample bulk request and parses a sample bulk response, so the classes every write
+     * needs are loaded before the first real one. Nothing is sent to Elasticsearch
+     *
+     * @param doc A sample document to put in the bulk request
+     * @throws IOException
+     */
+    public void warmUp(Document doc) throws IOException {
+        if (env.ES_ENDPOINT() != null) {
+            getEsClient(env);
+        }
+
+        String type = env.ES_DOCTYPE() == null ? "doc" : env.ES_DOCTYPE();
+        BulkRequest bulk = new BulkRequest();
+        bulk.add(new IndexRequest("warmup", type, "warmup").source(serialize(jsonb, doc), XContentType.JSON));
+        bulk.add(new DeleteRequest("warmup", type, "warmup"));
+        // a throwaway instance so the sample doesn't show up in the compression stats
+        new RequestCompression(0).bulk(bulk);
+
+        String response = "{\"took\": 1, \"errors\": false, \"items\": [{\"index\": {\"_index\": \"warmup\", " +
+                "\"_type\": \"" + type + "\", \"_id\": \"warmup\", \"_version\": 1, \"result\": \"created\", " +
+                "\"_shards\": {\"total\": 2, \"successful\": 1, \"failed\": 0}, \"status\": 201}}]}";
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, response)) {
+            BulkResponse.fromXContent(parser);
+        }
+    }
+
+    /**
+     * Sets up the connection pool, keep-alive and timeouts of the underlying http client from the environment. The
+     * defaults leave connections to be closed and opened (with a new TLS handshake) far more than they need to be
+     *
+     * @param builder The builder for the low level client
+     * @param env The environment to take the settings from
+     * @param signer The interceptor that signs each request
+     * @return The same builder
+     */
+    static RestClientBuilder configureTransport(RestClientBuilder builder, Env env, HttpRequestInterceptor signer) {
+        long keepAliveMs = env.ES_KEEP_ALIVE_MS();
+
+        return builder
+                .setRequestConfigCallback(config -> config
+                        .setConnectTimeout(env.ES_CONNECT_TIMEOUT_MS())
+                        .setSocketTimeout(env.ES_SOCKET_TIMEOUT_MS())
+                        .setConnectionRequestTimeout(env.ES_CONNECT_TIMEOUT_MS()))
+                .setMaxRetryTimeoutMillis(env.ES_SOCKET_TIMEOUT_MS())
+                .setHttpClientConfigCallback(callback -> callback
+                        .setMaxConnPerRoute(env.ES_MAX_CONN_PER_ROUTE())
+                        .setMaxConnTotal(env.ES_MAX_CONN_TOTAL())
+                        // AWS Elasticsearch doesn't send a Keep-Alive header, so without this a pooled connection
+                        // is kept forever and can end up being used after the load balancer has dropped it
+                        .setKeepAliveStrategy((response, context) -> keepAliveMs)
+                        .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                                .setSoKeepAlive(true)
+                                .setTcpNoDelay(true)
+                                // a bigger send buffer means fewer round trips to get a large bulk request out
+                                .setSndBufSize(Math.max(0, env.ES_SEND_BUFFER_BYTES()))
+                                .setRcvBufSize(Math.max(0, env.ES_RECEIVE_BUFFER_BYTES()))
+                                .build())
+                        .addInterceptorLast(signer));
+    }
+
+    /**
+     * Start a batch of writes. In bulk mode index and delete requests are gathered up and only sent when the pending
+     * bulk request gets too big or when endBatch is called, and in async mode requests are sent without waiting for
+     * their responses (up to a limit of requests in flight). Write failures are then reported by endBatch rather
+     * than thrown, as they may only be found out about later
+     */
+    public void beginBatch() {
+        beginBatch(Long.MAX_VALUE);
+    }
+
+    /**
+     * Start a batch of writes that has to be finished by a deadline, no retry is started that couldn't be
+     * finished before it
+     *
+     * @param deadline When the batch has to be finished by (epoch millis)
+     */
+    public void beginBatch(long deadline) {
+        batchState.set(new BatchState(env.ES_BULK_ENABLED(), env.ES_ASYNC_ENABLED(), env.ES_MAX_IN_FLIGHT(),
+                deadline));
+    }
+
+    /**
+     * Set who owns the writes added from now on, usually the ID of the SQS message being processed
+     *
+     * @param owner An identifier to report back from endBatch if any of these writes fail
+     */
+    public void setBatchOwner(String owner) {
+        batchState.get().owner = owner;
+    }
+
+    /**
+     * Send anything still waiting in the pending bulk request, wait for every request in flight to finish and switch
+     * back to sending each write straight away
+     *
+     * @return The owners of any writes that failed since beginBatch was called
+     */
+    public Set<String> endBatch() {
+        BatchState state = batchState.get();
+        try {
+            drain();
+            synchronized (state.failedOwners) {
+                return new LinkedHashSet<>(state.failedOwners);
+            }
+        } finally {
+            batchState.remove();
+        }
+    }
+
+    /**
+     * @return Whether writes made now might not have been sent (or finished) until endBatch is called
+     */
+    public boolean isBatchDeferred() {
+        BatchState state = batchState.get();
+        return state != null && (state.bulk || state.async);
+    }
+
+    /**
+     * Indexes a document in every index the given index is routed to, the document is only serialized once
+     *
+     * @param index The incoming index
+     * @param doc The document to index
+     * @throws IOException
+     */
     public void putDocument(String index, Document doc) throws IOException {
+        putDocument(index, doc, null);
+    }
 
-        IndexRequest req = new IndexRequest(index, env.ES_DOCTYPE(), doc.getId());
+    /**
+     * Indexes a document in every index the given index is routed to, the document is only serialized once
+     *
+     * @param index The incoming index
+     * @param doc The document to index
+     * @param version The external version of the document, the write is dropped if the index already has a newer
+     *                version of it. Null to write it whatever is there
+     * @throws IOException
+     */
+    public void putDocument(String index, Document doc, Long version) throws IOException {
 
-        Jsonb jsonb = JsonbBuilder.create();
-        req.source(jsonb.toJson(doc), XContentType.JSON);
+        List<String> targets = router.route(index);
 
-        IndexResponse resp = ElasticService.getEsClient(env).index(req, RequestOptions.DEFAULT);
+        // a versioned write is never skipped, even if the document hasn't changed it has to be given the new version
+        // or an older write arriving later would go through
+        String fingerprint = version == null ? doc.getFingerprint() : null;
 
-        if (!(resp.getResult() == DocWriteResponse.Result.CREATED
-                || resp.getResult() == DocWriteResponse.Result.UPDATED)) {
-            throw new RuntimeException(
-                    String.format("Index Response return was not as expected got (%d) with the following " +
-                            "returned %s", resp.status().getStatus(), resp.toString()));
+        BatchState state = batchState.get();
+        if (skipUnchanged && fingerprint != null && (state == null || !state.bulk)) {
+            // bulk writes are checked all at once when they're sent, anything else is checked here
+            targets = getChangedTargets(state, targets, doc);
+        }
+
+        BytesReference source = null;
+
+        for (String target : targets) {
+            IndexRequest req = new IndexRequest(target, env.ES_DOCTYPE(), doc.getId());
+            if (version != null) {
+                req.version(version).versionType(VersionType.EXTERNAL_GTE);
+            }
+
+            if (source == null) {
+                source = serialize(jsonb, doc);
+            }
+            req.source(source, XContentType.JSON);
+
+            putDocument(req, fingerprint);
+        }
+    }
+
+    /**
+     * Serializes a document straight into the bytes of a request body. Jsonb's generator encodes the UTF-8 as it
+     * goes, so the JSON never exists as a String; for a big file's content that would be a couple of extra copies of
+     * it on the heap (the String and the bytes it's converted to). The buffer is sized up front from the text fields
+     * that make up most of a document, and grows in pages rather than being copied if that's not enough
+     *
+     * @param jsonb The Jsonb to serialize with, so the JSON is the same as jsonb.toJson would give
+     * @param doc The document to serialize
+     * @return The JSON, ready to be an index request's source
+     */
+    static BytesReference serialize(Jsonb jsonb, Document doc) {
+        BytesStreamOutput out = new BytesStreamOutput(1024 + length(doc.getContent())
+                + length(doc.getContentTruncated()) + length(doc.getFileBase64()));
+        jsonb.toJson(doc, out);
+        return out.bytes();
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private void putDocument(IndexRequest req, String fingerprint) throws IOException {
+
+        Metrics.countBytes(Stage.ES_INDEX, req.source().length());
+
+        BatchState state = batchState.get();
+        countWrite(state, req);
+
+        if (state != null && state.bulk) {
+            addToBulk(state, req, fingerprint);
+            return;
+        }
+
+        if (state != null && state.async) {
+            String owner = state.owner;
+            List<String> docs = Collections.singletonList(docKey(req));
+            startInFlight(state, docs);
+            long start = System.nanoTime();
+            withRetriesAsync(state.deadline, listener -> indexAsync(req, listener), new ActionListener<IndexResponse>() {
+                @Override
+                public void onResponse(IndexResponse resp) {
+                    Metrics.recordTime(Stage.ES_INDEX, start);
+                    String error = getIndexError(resp);
+                    if (error != null) {
+                        state.fail(owner, error);
+                    }
+                    endInFlight(state, docs);
+                }
+
+                @Override
+                public void onFailure(Exception ex) {
+                    Metrics.recordTime(Stage.ES_INDEX, start);
+                    if (isVersionConflict(ex)) {
+                        logStaleWrite(req);
+                    } else {
+                        state.fail(owner, ex.toString());
+                    }
+                    endInFlight(state, docs);
+                }
+            });
+            return;
+        }
+
+        IndexResponse resp;
+        try (Metrics.Timer timer = Metrics.time(Stage.ES_INDEX)) {
+            resp = withRetries(() -> index(req));
+        } catch (IOException | RuntimeException ex) {
+            if (!isVersionConflict(ex)) {
+                throw ex;
+            }
+            logStaleWrite(req);
+            return;
+        }
+
+        String error = getIndexError(resp);
+        if (error != null) {
+            throw new RuntimeException(error);
         }
     }
 
+    /**
+     * Deletes a document from every index the given index is routed to
+     *
+     * @param index The incoming index
+     * @param docId The ID of the document to delete
+     * @throws IOException
+     */
     public void deleteDocument(String index, String docId) throws IOException {
+        deleteDocument(index, docId, null);
+    }
+
+    /**
+     * Deletes a document from every index the given index is routed to
+     *
+     * @param index The incoming index
+     * @param docId The ID of the document to delete
+     * @param version The external version of the delete, the delete is dropped if the index already has a newer
+     *                version of the document. Null to delete it whatever is there. The version of a deleted document
+     *                is only kept for the index's gc_deletes setting, after which an older write can recreate it
+     * @throws IOException
+     */
+    public void deleteDocument(String index, String docId, Long version) throws IOException {
+
+        for (String target : router.route(index)) {
+            DeleteRequest request = new DeleteRequest(target, env.ES_DOCTYPE(), docId);
+            if (version != null) {
+                request.version(version).versionType(VersionType.EXTERNAL_GTE);
+            }
+            deleteDocument(request);
+        }
+    }
+
+    private void deleteDocument(DeleteRequest request) throws IOException {
+
+        boolean live = router.isLive(request.index());
+
+        BatchState state = batchState.get();
+        countWrite(state, request);
+
+        if (state != null && state.bulk) {
+            addToBulk(state, request, null);
+            return;
+        }
+
+        if (state != null && state.async) {
+            String owner = state.owner;
+            List<String> docs = Collections.singletonList(docKey(request));
+            startInFlight(state, docs);
+            long start = System.nanoTime();
+            withRetriesAsync(state.deadline,
+                    listener -> getEsClient(env).deleteAsync(request, RequestOptions.DEFAULT, listener),
+                    new ActionListener<DeleteResponse>() {
+                @Override
+                public void onResponse(DeleteResponse response) {
+                    Metrics.recordTime(Stage.ES_DELETE, start);
+                    String error = getDeleteError(live, response);
+                    if (error != null) {
+                        state.fail(owner, error);
+                    }
+                    endInFlight(state, docs);
+                }
+
+                @Override
+                public void onFailure(Exception ex) {
+                    Metrics.recordTime(Stage.ES_DELETE, start);
+                    if (isVersionConflict(ex)) {
+                        logStaleWrite(request);
+                    } else {
+                        state.fail(owner, ex.toString());
+                    }
+                    endInFlight(state, docs);
+                }
+            });
+            return;
+        }
+
+        DeleteResponse response;
+        try (Metrics.Timer timer = Metrics.time(Stage.ES_DELETE)) {
+            response = withRetries(() -> getEsClient(env).delete(request, RequestOptions.DEFAULT));
+        } catch (IOException | RuntimeException ex) {
+            if (!isVersionConflict(ex)) {
+                throw ex;
+            }
+            logStaleWrite(request);
+            return;
+        }
+
+        String error = getDeleteError(live, response);
+        if (error != null) {
+            throw new RuntimeException(error);
+        }
+    }    
 
-        DeleteRequest request = new DeleteRequest(index, env.ES_DOCTYPE(), docId);
-        DeleteResponse response = ElasticService.getEsClient(env).delete(request, RequestOptions.DEFAULT);
+    // index and bulk requests over the minimum size go through the low level client gzip compressed, the rest (and
+    // everything when compression is turned off) go through the high level client as normal
+
+    private IndexResponse index(IndexRequest req) throws IOException {
+        if (compression != null && compression.shouldCompress(req.source().length())) {
+            Response response = getEsClient(env).getLowLevelClient().performRequest(compression.index(req));
+            return RequestCompression.parse(response, IndexResponse::fromXContent);
+        }
+        return getEsClient(env).index(req, RequestOptions.DEFAULT);
+    }
+
+    private void indexAsync(IndexRequest req, ActionListener<IndexResponse> listener) {
+        if (compression != null && compression.shouldCompress(req.source().length())) {
+            Request request;
+            try {
+                request = compression.index(req);
+            } catch (IOException ex) {
+                listener.onFailure(ex);
+                return;
+            }
+            getEsClient(env).getLowLevelClient().performRequestAsync(request,
+                    RequestCompression.listener(listener, IndexResponse::fromXContent));
+            return;
+        }
+        getEsClient(env).indexAsync(req, RequestOptions.DEFAULT, listener);
+    }
+
+    private BulkResponse bulk(BulkRequest req) throws IOException {
+        if (compression != null && compression.shouldCompress(req.estimatedSizeInBytes())) {
+            Response response = getEsClient(env).getLowLevelClient().performRequest(compression.bulk(req));
+            return RequestCompression.parse(response, BulkResponse::fromXContent);
+        }
+        return getEsClient(env).bulk(req, RequestOptions.DEFAULT);
+    }
+
+    private void bulkAsync(BulkRequest req, ActionListener<BulkResponse> listener) {
+        if (compression != null && compression.shouldCompress(req.estimatedSizeInBytes())) {
+            Request request;
+            try {
+                request = compression.bulk(req);
+            } catch (IOException ex) {
+                listener.onFailure(ex);
+                return;
+            }
+            getEsClient(env).getLowLevelClient().performRequestAsync(request,
+                    RequestCompression.listener(listener, BulkResponse::fromXContent));
+            return;
+        }
+        getEsClient(env).bulkAsync(req, RequestOptions.DEFAULT, listener);
+    }
+
+    /**
+     * Versioned writes are only refused when the index already has a newer version of the document, which is what
+     * they're for, so a refusal means there's nothing to do rather than anything having gone wrong
+     */
+    static boolean isVersionConflict(Exception ex) {
+        if (ex instanceof ElasticsearchException) {
+            return ((ElasticsearchException) ex).status() == RestStatus.CONFLICT;
+        }
+        if (ex instanceof ResponseException) {
+            return ((ResponseException) ex).getResponse().getStatusLine().getStatusCode() == 409;
+        }
+        return false;
+    }
+
+    private static void logStaleWrite(DocWriteRequest<?> req) {
+        System.out.println(String.format(":: Skipping %s of doc %s in %s at version %d, it already has a newer " +
+                "version ::", req.opType(), req.id(), req.index(), req.version()));
+        Metrics.countDocument("stale", null);
+    }
+
+    static String getIndexError(IndexResponse resp) {
+        if (!(resp.getResult() == DocWriteResponse.Result.CREATED
+                || resp.getResult() == DocWriteResponse.Result.UPDATED)) {
+            return String.format("Index Response return was not as expected got (%d) with the following " +
+                    "returned %s", resp.status().getStatus(), resp.toString());
+        }
+        return null;
+    }
 
+    static String getDeleteError(boolean live, DeleteResponse response) {
         if (response.getResult() != DocWriteResponse.Result.DELETED) {
             // we only have one queue for all environments, so avoid filling it with 404s which
             // can happen more easily in non-live environments
-            boolean nonLive404 = !index.startsWith("live") && response.status().getStatus() == 404;
+            boolean nonLive404 = !live && response.status().getStatus() == 404;
             if (!nonLive404) {
-                throw new RuntimeException(
-                        String.format("Index Response not as expected. Got (%d) with the following " +
-                                "returned %s", response.status().getStatus(), response.toString()));
+                return String.format("Index Response not as expected. Got (%d) with the following " +
+                        "returned %s", response.status().getStatus(), response.toString());
             }
         }
-    }    
+        return null;
+    }
 
     public void deleteByParentId(String index, String parentDocId) throws IOException {
 
-        DeleteByQueryRequest req = new DeleteByQueryRequest(index);
+        // delete by query can't go in a bulk request, so send anything gathered so far (and wait for it) first
+        // to keep the writes in the order they were asked for
+        drain();
+
+        // one request covers every target
+        DeleteByQueryRequest req = new DeleteByQueryRequest(router.route(index).toArray(new String[0]));
         req.setQuery(QueryBuilders.matchQuery("parent_id", parentDocId));
 
-        BulkByScrollResponse res = ElasticService.getEsClient(env).deleteByQuery(req, RequestOptions.DEFAULT);
+        BulkByScrollResponse res;
+        try (Metrics.Timer timer = Metrics.time(Stage.ES_DELETE_BY_QUERY)) {
+            res = withRetries(() -> getEsClient(env).deleteByQuery(req, RequestOptions.DEFAULT));
+        }
 
         // TODO: Need to check the response of this
     }
+
+    /**
+     * Looks up the indexes an alias points at, for the index router
+     *
+     * @param name An alias or index name
+     * @return The indexes the alias points at and whether each is its write index, empty if it isn't an alias
+     * @throws IOException Thrown on an issue talking to Elasticsearch
+     */
+    private Map<String, Boolean> lookupAlias(String name) throws IOException {
+        Request request = new Request("GET", "/_alias/" + URLEncoder.encode(name, "UTF-8"));
+        // not an alias
+        request.addParameter("ignore", "404");
+
+        Response response = getEsClient(env).getLowLevelClient().performRequest(request);
+
+        Map<String, Boolean> indexes = new HashMap<>();
+        if (response.getStatusLine().getStatusCode() == 404) {
+            return indexes;
+        }
+
+        // {"index": {"aliases": {"name": {"is_write_index": true}}}, ...}
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, response.getEntity().getContent())) {
+            for (Map.Entry<String, Object> entry : parser.map().entrySet()) {
+                Object aliases = ((Map<?, ?>) entry.getValue()).get("aliases");
+                Object alias = aliases instanceof Map ? ((Map<?, ?>) aliases).get(name) : null;
+                Object writeIndex = alias instanceof Map ? ((Map<?, ?>) alias).get("is_write_index") : null;
+                indexes.put(entry.getKey(), Boolean.TRUE.equals(writeIndex));
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Finds the existing child documents (i.e. datahub resources) of a parent document along with their fingerprints.
+     * Search is near real time, so children written in the last second or so might not show up yet. When the index is
+     * routed to several targets every one of them is looked in, and a child only keeps its fingerprint if it's in all
+     * of them with the same one, so it's written to every target unless none of them need it
+     *
+     * @param index The index to look in
+     * @param parentDocId The ID of the parent document
+     * @return The fingerprint of each child in any of the targets, keyed by the child's ID (null for children indexed
+     *         without one, or that differ between targets)
+     * @throws IOException Thrown on an issue talking to Elasticsearch
+     */
+    public Map<String, String> getChildFingerprints(String index, String parentDocId) throws IOException {
+
+        // send anything gathered so far (and wait for it) first, so it has a chance to show up
+        drain();
+
+        List<Map<String, String>> byTarget = new ArrayList<>();
+        for (String target : router.route(index)) {
+            byTarget.add(getChildFingerprintsIn(target, parentDocId));
+        }
+        return mergeChildFingerprints(byTarget);
+    }
+
+    private Map<String, String> getChildFingerprintsIn(String target, String parentDocId) throws IOException {
+        SearchRequest req = new SearchRequest(target);
+        req.source(new SearchSourceBuilder()
+                .query(QueryBuilders.matchQuery("parent_id", parentDocId))
+                .fetchSource(new String[] { "fingerprint" }, null)
+                .size(MAX_CHILDREN));
+
+        SearchResponse resp;
+        try (Metrics.Timer timer = Metrics.time(Stage.ES_SEARCH)) {
+            resp = withRetries(() -> getEsClient(env).search(req, RequestOptions.DEFAULT));
+        }
+
+        if (resp.getHits().getTotalHits() > MAX_CHILDREN) {
+            throw new RuntimeException(String.format("Document %s has %d children in %s, more than the %d that can " +
+                    "be synced", parentDocId, resp.getHits().getTotalHits(), target, MAX_CHILDREN));
+        }
+
+        Map<String, String> fingerprints = new HashMap<>();
+        for (SearchHit hit : resp.getHits().getHits()) {
+            Object fingerprint = hit.getSourceAsMap() == null ? null : hit.getSourceAsMap().get("fingerprint");
+            fingerprints.put(hit.getId(), fingerprint == null ? null : fingerprint.toString());
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @param byTarget The fingerprints of the children in each target, keyed by ID
+     * @return Every child in any of the targets, with its fingerprint if it's the same in all of them, else null
+     */
+    static Map<String, String> mergeChildFingerprints(List<Map<String, String>> byTarget) {
+        Map<String, String> merged = new HashMap<>();
+        for (Map<String, String> children : byTarget) {
+            for (String id : children.keySet()) {
+                if (merged.containsKey(id)) {
+                    continue;
+                }
+
+                String fingerprint = children.get(id);
+                for (Map<String, String> other : byTarget) {
+                    if (!other.containsKey(id) || !Objects.equals(fingerprint, other.get(id))) {
+                        fingerprint = null;
+                        break;
+                    }
+                }
+                merged.put(id, fingerprint);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Add a write to the pending bulk request, sending the bulk request first if this write would take it over the
+     * configured size limit, and afterwards if it has reached the configured number of actions
+     *
+     * @param state The current batch
+     * @param req The index or delete request to add
+     * @param fingerprint The fingerprint of the document being indexed, null for deletes
+     */
+    private void addToBulk(BatchState state, DocWriteRequest<?> req, String fingerprint) {
+        long reqBytes = req instanceof IndexRequest ? ((IndexRequest) req).source().length() : 0;
+
+        if (state.pendingBulk.numberOfActions() > 0
+                && state.pendingBulk.estimatedSizeInBytes() + reqBytes > env.ES_BULK_MAX_BYTES()) {
+            flushBulk(state);
+        }
+
+        state.pendingBulk.add(req);
+        state.pendingOwners.add(state.owner);
+        state.pendingFingerprints.add(fingerprint);
+
+        if (state.pendingBulk.numberOfActions() >= env.ES_BULK_MAX_ACTIONS()) {
+            flushBulk(state);
+        }
+    }
+
+    /**
+     * Sends anything waiting in the pending bulk request and waits for every request in flight to finish
+     */
+    private void drain() {
+        BatchState state = batchState.get();
+        if (state == null) {
+            return;
+        }
+
+        flushBulk(state);
+
+        if (state.async) {
+            // once every permit can be had nothing is in flight
+            acquireInFlight(state, state.maxInFlight);
+            state.inFlight.release(state.maxInFlight);
+        }
+    }
+
+    /**
+     * Send the pending bulk request (if there is anything in it) and check every item in the response. Nothing is
+     * thrown here, the owners of any failed writes are remembered and handed back by endBatch instead
+     *
+     * @param state The current batch
+     */
+    private void flushBulk(BatchState state) {
+        if (skipUnchanged) {
+            skipUnchanged(state);
+        }
+
+        if (state.pendingBulk.numberOfActions() == 0) {
+            return;
+        }
+
+        List<String> owners = new ArrayList<>();
+        BulkRequest req = groupByIndex(state.pendingBulk, state.pendingOwners, owners);
+        state.pendingBulk = new BulkRequest();
+        state.pendingOwners = new ArrayList<>();
+        state.pendingFingerprints = new ArrayList<>();
+
+        System.out.println(String.format(":: Sending bulk request with %d actions (~%d bytes) ::",
+                req.numberOfActions(), req.estimatedSizeInBytes()));
+
+        if (state.async) {
+            List<String> docs = req.requests().stream().map(ElasticService::docKey).collect(Collectors.toList());
+            startInFlight(state, docs);
+            sendBulkAsync(state, req, owners, docs, 1);
+            return;
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            BulkRequest attemptReq = req;
+            Metrics.countBytes(Stage.ES_BULK, req.estimatedSizeInBytes());
+            BulkResponse resp;
+            try (Metrics.Timer timer = Metrics.time(Stage.ES_BULK)) {
+                resp = withRetries(() -> bulk(attemptReq));
+            } catch (IOException | RuntimeException ex) {
+                failBulk(state, ex, owners);
+                return;
+            }
+
+            BulkRetry retry = checkBulkResponse(state, resp, req, owners, attempt);
+            if (retry == null) {
+                return;
+            }
+
+            sleep(retry.delay);
+            req = retry.request;
+            owners = retry.owners;
+        }
+    }
+
+    private static void countWrite(BatchState state, DocWriteRequest<?> req) {
+        if (state != null) {
+            state.writes.merge(docKey(req), 1, Integer::sum);
+        }
+    }
+
+    private static String docKey(DocWriteRequest<?> req) {
+        return req.index() + "/" + req.id();
+    }
+
+    /**
+     * Takes the index actions out of the pending bulk request that would write a document that's already in the index
+     * with the same fingerprint, looking them all up with one multi get. Only documents written once in the batch are
+     * looked at
+     *
+     * @param state The current batch
+     */
+    private void skipUnchanged(BatchState state) {
+        List<DocWriteRequest<?>> requests = state.pendingBulk.requests();
+        List<MultiGetRequest.Item> candidates = new ArrayList<>();
+        // the position in the bulk request of each candidate
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            DocWriteRequest<?> req = requests.get(i);
+            if (state.pendingFingerprints.get(i) != null
+                    && state.writes.get(req.index() + "/" + req.id()) == 1) {
+                candidates.add(new MultiGetRequest.Item(req.index(), req.type(), req.id()));
+                positions.add(i);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        List<String> found = getFingerprints(candidates);
+        String[] existing = new String[requests.size()];
+        for (int i = 0; i < positions.size(); i++) {
+            existing[positions.get(i)] = found.get(i);
+        }
+
+        BulkRequest changed = new BulkRequest();
+        List<String> owners = new ArrayList<>();
+        List<String> fingerprints = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            DocWriteRequest<?> req = requests.get(i);
+            String fingerprint = state.pendingFingerprints.get(i);
+            if (fingerprint != null && fingerprint.equals(existing[i])) {
+                continue;
+            }
+            changed.add(req);
+            owners.add(state.pendingOwners.get(i));
+            fingerprints.add(fingerprint);
+        }
+
+        if (changed.numberOfActions() < requests.size()) {
+            System.out.println(String.format(":: Skipping %d of %d bulk actions, the documents haven't changed ::",
+                    requests.size() - changed.numberOfActions(), requests.size()));
+        }
+
+        state.pendingBulk = changed;
+        state.pendingOwners = owners;
+        state.pendingFingerprints = fingerprints;
+    }
+
+    /**
+     * Works out which of the indexes a document is about to be written to already have it with the same fingerprint,
+     * with one multi get for them all. If the document has already been written in this batch it's written again
+     * regardless
+     *
+     * @param state The current batch, if there is one
+     * @param targets The indexes the document is about to be written to
+     * @param doc The document
+     * @return The indexes that need it writing
+     */
+    private List<String> getChangedTargets(BatchState state, List<String> targets, Document doc) {
+        List<MultiGetRequest.Item> lookups = new ArrayList<>();
+        List<String> lookedUp = new ArrayList<>();
+        for (String target : targets) {
+            if (state == null || !state.writes.containsKey(target + "/" + doc.getId())) {
+                lookups.add(new MultiGetRequest.Item(target, env.ES_DOCTYPE(), doc.getId()));
+                lookedUp.add(target);
+            }
+        }
+        if (lookups.isEmpty()) {
+            return targets;
+        }
+
+        List<String> found = getFingerprints(lookups);
+        Map<String, String> existing = new HashMap<>();
+        for (int i = 0; i < lookedUp.size(); i++) {
+            existing.put(lookedUp.get(i), found.get(i));
+        }
+
+        List<String> changed = new ArrayList<>();
+        for (String target : targets) {
+            if (!doc.getFingerprint().equals(existing.get(target))) {
+                changed.add(target);
+            }
+        }
+
+        if (changed.size() < targets.size()) {
+            System.out.println(String.format(":: Skipping doc %s in %s, it hasn't changed ::", doc.getId(),
+                    targets.stream().filter(t -> !changed.contains(t)).collect(Collectors.joining(", "))));
+        }
+        return changed;
+    }
+
+    /**
+     * Looks up the fingerprints of documents already in the index with one multi get. It's only used to skip writes,
+     * so if it fails the writes just go ahead
+     *
+     * @param docs The documents to look up
+     * @return The fingerprint of each document in the same order as they were given, null for any that isn't in the
+     *         index with one
+     */
+    private List<String> getFingerprints(List<MultiGetRequest.Item> docs) {
+        MultiGetRequest req = new MultiGetRequest();
+        FetchSourceContext fingerprintOnly = new FetchSourceContext(true, new String[] { "fingerprint" }, null);
+        for (MultiGetRequest.Item doc : docs) {
+            req.add(doc.fetchSourceContext(fingerprintOnly));
+        }
+
+        MultiGetResponse resp;
+        try (Metrics.Timer timer = Metrics.time(Stage.ES_MULTI_GET)) {
+            resp = getEsClient(env).mget(req, RequestOptions.DEFAULT);
+        } catch (IOException | RuntimeException ex) {
+            System.out.println(String.format(":: Couldn't look up existing fingerprints, writing anyway :: %s", ex));
+            return Collections.nCopies(docs.size(), null);
+        }
+
+        return getFingerprints(resp);
+    }
+
+    /**
+     * Picks the fingerprints out of a multi get response by position rather than by the index in each item, which is
+     * the concrete index an alias points to rather than the alias that was asked for
+     *
+     * @param resp The multi get response, with an item for each document asked for in the same order
+     * @return The fingerprint of each document in order, null for any that isn't in the index with one
+     */
+    static List<String> getFingerprints(MultiGetResponse resp) {
+        List<String> fingerprints = new ArrayList<>();
+        for (MultiGetItemResponse item : resp.getResponses()) {
+            Object fingerprint = null;
+            if (!item.isFailed() && item.getResponse().isExists() && item.getResponse().getSourceAsMap() != null) {
+                fingerprint = item.getResponse().getSourceAsMap().get("fingerprint");
+            }
+            fingerprints.add(fingerprint == null ? null : fingerprint.toString());
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Puts the actions of a bulk request for the same index next to each other, keeping them in order within each
+     * index. Writes to different indexes don't depend on each other, so this doesn't change the outcome
+     *
+     * @param req The bulk request
+     * @param owners The owner of each action in the bulk request
+     * @param groupedOwners Filled with the owner of each action in the grouped request
+     * @return The grouped request, which is the same request if it only has one index in it
+     */
+    static BulkRequest groupByIndex(BulkRequest req, List<String> owners, List<String> groupedOwners) {
+        List<DocWriteRequest<?>> requests = req.requests();
+        Map<String, List<Integer>> byIndex = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            byIndex.computeIfAbsent(requests.get(i).index(), k -> new ArrayList<>()).add(i);
+        }
+
+        if (byIndex.size() <= 1) {
+            groupedOwners.addAll(owners);
+            return req;
+        }
+
+        BulkRequest grouped = new BulkRequest();
+        for (List<Integer> positions : byIndex.values()) {
+            for (int i : positions) {
+                grouped.add(requests.get(i));
+                groupedOwners.add(owners.get(i));
+            }
+        }
+        return grouped;
+    }
+
+    /**
+     * Sends a bulk request without waiting for the response, retrying any items that failed in a way worth
+     * retrying. The in flight permit (and the documents in it) are held until every retry has finished
+     */
+    private void sendBulkAsync(BatchState state, BulkRequest req, List<String> owners, List<String> docs,
+                               int attempt) {
+        Metrics.countBytes(Stage.ES_BULK, req.estimatedSizeInBytes());
+        long start = System.nanoTime();
+        withRetriesAsync(state.deadline, listener -> bulkAsync(req, listener), new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse resp) {
+                Metrics.recordTime(Stage.ES_BULK, start);
+                BulkRetry retry;
+                try {
+                    retry = checkBulkResponse(state, resp, req, owners, attempt);
+                } catch (RuntimeException ex) {
+                    onFailure(ex);
+                    return;
+                }
+
+                if (retry == null) {
+                    endInFlight(state, docs);
+                    return;
+                }
+
+                RETRY_SCHEDULER.schedule(() -> sendBulkAsync(state, retry.request, retry.owners, docs, attempt + 1),
+                        retry.delay, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                Metrics.recordTime(Stage.ES_BULK, start);
+                failBulk(state, ex, owners);
+                endInFlight(state, docs);
+            }
+        });
+    }
+
+    /**
+     * The items of a bulk request to send again, and how long to wait first
+     */
+    private static class BulkRetry {
+        final BulkRequest request = new BulkRequest();
+        final List<String> owners = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+        long delay;
+    }
+
+    /**
+     * Checks every item in a bulk response, a bulk request can partly succeed so a 200 on the request as a whole
+     * doesn't mean much. Items rejected because the cluster is overloaded are gathered up to be sent again (if there
+     * are attempts and time left), the owners of any other failed items are remembered as failed
+     *
+     * @return The items to retry, or null if there's nothing to retry
+     */
+    private BulkRetry checkBulkResponse(BatchState state, BulkResponse resp, BulkRequest req, List<String> owners,
+                                        int attempt) {
+        BulkRetry retry = new BulkRetry();
+
+        for (BulkItemResponse item : resp.getItems()) {
+            if (item.isFailed() && item.status() == RestStatus.CONFLICT) {
+                logStaleWrite(req.requests().get(item.getItemId()));
+                continue;
+            }
+
+            String error = getBulkItemError(item, router::isLive);
+            if (error == null) {
+                continue;
+            }
+
+            String owner = owners.get(item.getItemId());
+            if (item.isFailed() && RetryPolicy.isRetryable(item.status().getStatus())) {
+                retry.request.add(req.requests().get(item.getItemId()));
+                retry.owners.add(owner);
+                retry.errors.add(error);
+            } else {
+                state.fail(owner, error);
+            }
+        }
+
+        if (retry.owners.isEmpty()) {
+            return null;
+        }
+
+        circuitBreaker.recordFailure();
+        retry.delay = retryPolicy.getDelay(attempt, state.deadline);
+
+        if (retry.delay < 0) {
+            for (int i = 0; i < retry.owners.size(); i++) {
+                state.fail(retry.owners.get(i), retry.errors.get(i));
+            }
+            return null;
+        }
+
+        System.out.println(String.format(":: Retrying %d of %d bulk items in %dms (attempt %d) ::",
+                retry.owners.size(), resp.getItems().length, retry.delay, attempt));
+        return retry;
+    }
+
+    private static void failBulk(BatchState state, Exception ex, List<String> owners) {
+        System.out.println(String.format(":: Bulk request failed :: %s", ex));
+        state.failedOwners.addAll(owners);
+    }
+
+    private long getDeadline() {
+        BatchState state = batchState.get();
+        return state == null ? Long.MAX_VALUE : state.deadline;
+    }
+
+    /**
+     * Sends a request, sending it again after a backoff if it fails in a way that's worth retrying, until it
+     * succeeds, fails in some other way or runs out of attempts or time. Nothing is sent while the circuit
+     * breaker is open
+     *
+     * @param request Sends the request
+     * @return The response
+     * @throws IOException The last failure, if the request never succeeded
+     */
+    private <T> T withRetries(CheckedSupplier<T, IOException> request) throws IOException {
+        long deadline = getDeadline();
+
+        for (int attempt = 1; ; attempt++) {
+            long wait = circuitBreaker.getMillisUntilClosed();
+            if (wait > 0) {
+                if (System.currentTimeMillis() + wait >= deadline) {
+                    throw new RuntimeException("Elasticsearch circuit breaker is open");
+                }
+                sleep(wait);
+            }
+
+            try {
+                T response = request.get();
+                circuitBreaker.recordSuccess();
+                return response;
+            } catch (IOException | RuntimeException ex) {
+                if (!RetryPolicy.isRetryable(ex)) {
+                    throw ex;
+                }
+
+                circuitBreaker.recordFailure();
+                long delay = retryPolicy.getDelay(attempt, deadline);
+                if (delay < 0) {
+                    throw ex;
+                }
+
+                System.out.println(String.format(":: Retrying request in %dms (attempt %d) :: %s", delay, attempt, ex));
+                sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * The same as withRetries, but without waiting, the backoffs are scheduled rather than slept
+     *
+     * @param deadline When retries have to be finished by (epoch millis)
+     * @param request Sends the request, passing the outcome on to the listener it is given
+     * @param listener Given the response, or the last failure if the request never succeeded
+     */
+    private <T> void withRetriesAsync(long deadline, Consumer<ActionListener<T>> request, ActionListener<T> listener) {
+        sendAsync(1, deadline, request, listener);
+    }
+
+    private <T> void sendAsync(int attempt, long deadline, Consumer<ActionListener<T>> request,
+                               ActionListener<T> listener) {
+        long wait = circuitBreaker.getMillisUntilClosed();
+        if (wait > 0) {
+            if (System.currentTimeMillis() + wait >= deadline) {
+                listener.onFailure(new RuntimeException("Elasticsearch circuit breaker is open"));
+            } else {
+                RETRY_SCHEDULER.schedule(() -> sendAsync(attempt, deadline, request, listener),
+                        wait, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        ActionListener<T> retryingListener = new ActionListener<T>() {
+            @Override
+            public void onResponse(T response) {
+                circuitBreaker.recordSuccess();
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                if (!RetryPolicy.isRetryable(ex)) {
+                    listener.onFailure(ex);
+                    return;
+                }
+
+                circuitBreaker.recordFailure();
+                long delay = retryPolicy.getDelay(attempt, deadline);
+                if (delay < 0) {
+                    listener.onFailure(ex);
+                    return;
+                }
+
+                System.out.println(String.format(":: Retrying request in %dms (attempt %d) :: %s", delay, attempt, ex));
+                RETRY_SCHEDULER.schedule(() -> sendAsync(attempt + 1, deadline, request, listener),
+                        delay, TimeUnit.MILLISECONDS);
+            }
+        };
+
+        try {
+            request.accept(retryingListener);
+        } catch (RuntimeException ex) {
+            listener.onFailure(ex);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void acquireInFlight(BatchState state) {
+        acquireInFlight(state, 1);
+    }
+
+    /**
+     * Takes an in flight permit for a request writing the given documents. If one of them already has a write in
+     * flight, everything in flight is waited for first, otherwise nothing keeps the two writes in order (e.g. an
+     * upsert being retried could land after a delete sent after it). Writing a document twice in a batch is rare, so
+     * waiting for everything rather than just the one write costs little
+     */
+    private static void startInFlight(BatchState state, List<String> docs) {
+        for (String doc : docs) {
+            if (state.inFlightDocs.contains(doc)) {
+                acquireInFlight(state, state.maxInFlight);
+                state.inFlight.release(state.maxInFlight);
+                break;
+            }
+        }
+        state.inFlightDocs.addAll(docs);
+        acquireInFlight(state);
+    }
+
+    private static void endInFlight(BatchState state, List<String> docs) {
+        state.inFlightDocs.removeAll(docs);
+        state.inFlight.release();
+    }
+
+    /**
+     * Waits until there is room for more requests in flight, this is the backpressure that stops message processing
+     * getting too far ahead of Elasticsearch
+     */
+    private static void acquireInFlight(BatchState state, int permits) {
+        try {
+            state.inFlight.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Checks a single item of a bulk response in the same way as the single index / delete responses are checked
+     *
+     * @param item The bulk item response to check
+     * @return A description of what went wrong, or null if the item was fine
+     */
+    static String getBulkItemError(BulkItemResponse item) {
+        return getBulkItemError(item, index -> index.startsWith("live"));
+    }
+
+    /**
+     * @param item A bulk item response
+     * @param isLive Whether an index is live, i.e. deletes in it have to find something to delete
+     * @return What went wrong with the item, or null if nothing did
+     */
+    static String getBulkItemError(BulkItemResponse item, Predicate<String> isLive) {
+        if (item.isFailed() && item.status() == RestStatus.CONFLICT) {
+            // a versioned write that's older than what's in the index, same as putDocument and deleteDocument
+            return null;
+        }
+
+        if (item.isFailed()) {
+            return String.format("%s %s/%s failed (%d): %s", item.getOpType(), item.getIndex(), item.getId(),
+                    item.status().getStatus(), item.getFailureMessage());
+        }
+
+        DocWriteResponse.Result result = item.getResponse().getResult();
+
+        if (item.getOpType() == DocWriteRequest.OpType.DELETE) {
+            // same as deleteDocument, non-live 404s are ok
+            if (result != DocWriteResponse.Result.DELETED && isLive.test(item.getIndex())) {
+                return String.format("DELETE %s/%s not as expected. Got (%d) %s", item.getIndex(), item.getId(),
+                        item.status().getStatus(), result);
+            }
+        } else if (!(result == DocWriteResponse.Result.CREATED || result == DocWriteResponse.Result.UPDATED)) {
+            return String.format("%s %s/%s not as expected. Got (%d) %s", item.getOpType(), item.getIndex(),
+                    item.getId(), item.status().getStatus(), result);
+        }
+
+        return null;
+    }
 }
\ No newline at end of file
@@ -1,7 +1,109 @@
 package search.ingester;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class Env {
     public String AWS_REGION() { return System.getenv("AWS_REGION"); }
     public String ES_ENDPOINT() { return System.getenv("ES_ENDPOINT"); }
     public String ES_DOCTYPE() { return System.getenv("ES_DOCTYPE"); }
+
+    // bulk writes gather every index / delete in an SQS batch into as few requests as possible
+    public boolean ES_BULK_ENABLED() { return Boolean.parseBoolean(System.getenv("ES_BULK_ENABLED")); }
+    public int ES_BULK_MAX_ACTIONS() { return intOrDefault("ES_BULK_MAX_ACTIONS", 500); }
+    public long ES_BULK_MAX_BYTES() { return longOrDefault("ES_BULK_MAX_BYTES", 5 * 1024 * 1024); }
+
+    // async writes don't wait for each response, so the next message can be processed while they're in flight
+    public boolean ES_ASYNC_ENABLED() { return Boolean.parseBoolean(System.getenv("ES_ASYNC_ENABLED")); }
+    public int ES_MAX_IN_FLIGHT() { return intOrDefault("ES_MAX_IN_FLIGHT", 4); }
+
+    // the http connections to Elasticsearch are pooled and kept alive between invocations to save on TLS handshakes
+    public int ES_MAX_CONN_PER_ROUTE() { return intOrDefault("ES_MAX_CONN_PER_ROUTE", 10); }
+    public int ES_MAX_CONN_TOTAL() { return intOrDefault("ES_MAX_CONN_TOTAL", 30); }
+    public long ES_KEEP_ALIVE_MS() { return longOrDefault("ES_KEEP_ALIVE_MS", 60 * 1000); }
+    public int ES_CONNECT_TIMEOUT_MS() { return intOrDefault("ES_CONNECT_TIMEOUT_MS", 5 * 1000); }
+    public int ES_SOCKET_TIMEOUT_MS() { return intOrDefault("ES_SOCKET_TIMEOUT_MS", 60 * 1000); }
+    // socket send and receive buffer sizes, 0 leaves them to the OS (which grows them as it sees fit)
+    public int ES_SEND_BUFFER_BYTES() { return intOrDefault("ES_SEND_BUFFER_BYTES", 0); }
+    public int ES_RECEIVE_BUFFER_BYTES() { return intOrDefault("ES_RECEIVE_BUFFER_BYTES", 0); }
+    public long ES_CREDENTIALS_REFRESH_MS() { return longOrDefault("ES_CREDENTIALS_REFRESH_MS", 5 * 60 * 1000); }
+
+    // request bodies (extracted PDF text can run to megabytes) can be gzipped, the smallest aren't worth it
+    public boolean ES_GZIP_ENABLED() { return Boolean.parseBoolean(System.getenv("ES_GZIP_ENABLED")); }
+    public long ES_GZIP_MIN_BYTES() { return longOrDefault("ES_GZIP_MIN_BYTES", 16 * 1024); }
+
+    // requests the cluster pushes back on (429, 502-504) are retried with backoff, and if enough fail in a row nothing
+    // is sent for a while, retries stop short of the Lambda timeout (less the margin)
+    public int ES_RETRY_MAX_ATTEMPTS() { return intOrDefault("ES_RETRY_MAX_ATTEMPTS", 5); }
+    public long ES_RETRY_BASE_DELAY_MS() { return longOrDefault("ES_RETRY_BASE_DELAY_MS", 200); }
+    public long ES_RETRY_MAX_DELAY_MS() { return longOrDefault("ES_RETRY_MAX_DELAY_MS", 10 * 1000); }
+    public long ES_RETRY_DEADLINE_MARGIN_MS() { return longOrDefault("ES_RETRY_DEADLINE_MARGIN_MS", 5 * 1000); }
+    public int ES_CIRCUIT_BREAKER_FAILURES() { return intOrDefault("ES_CIRCUIT_BREAKER_FAILURES", 5); }
+    public long ES_CIRCUIT_BREAKER_OPEN_MS() { return longOrDefault("ES_CIRCUIT_BREAKER_OPEN_MS", 5 * 1000); }
+
+    // an incoming index can be routed to several target indexes or aliases (e.g. "live=live,live-next;beta=beta-blue"),
+    // aliases are resolved to the index they write to and cached for a while (0 leaves them to Elasticsearch)
+    public String INDEX_ROUTES() { return System.getenv("INDEX_ROUTES"); }
+    public long INDEX_ALIAS_CACHE_TTL_MS() { return longOrDefault("INDEX_ALIAS_CACHE_TTL_MS", 60 * 1000); }
+
+    // messages in a batch made pointless by a newer message for the same document are skipped
+    public boolean BATCH_COALESCING_ENABLED() { return Boolean.parseBoolean(System.getenv("BATCH_COALESCING_ENABLED")); }
+
+    // documents already in the index with the same fingerprint (i.e. only the timestamp would change) aren't rewritten
+    public boolean SKIP_UNCHANGED_ENABLED() { return Boolean.parseBoolean(System.getenv("SKIP_UNCHANGED_ENABLED")); }
+
+    // datahub resources are prepared (Tika, truncation, validation) in parallel on a bounded pool of threads, with
+    // a separate cap on how many Tika parses can run at once to keep heap use predictable
+    public int RESOURCE_PREP_THREADS() { return intOrDefault("RESOURCE_PREP_THREADS", Runtime.getRuntime().availableProcessors()); }
+    public int TIKA_MAX_CONCURRENT_PARSES() { return intOrDefault("TIKA_MAX_CONCURRENT_PARSES", RESOURCE_PREP_THREADS()); }
+
+    // the file formats Tika is set up to parse (any of pdf, ooxml, odf, html, txt), anything else goes to the full
+    // (slow to load) auto detecting parser unless that's turned off
+    public List<String> TIKA_PARSERS() { return Arrays.asList(stringOrDefault("TIKA_PARSERS", "pdf,ooxml,odf,html,txt").split(",")); }
+    public boolean TIKA_FALLBACK_PARSER_ENABLED() { return !"false".equalsIgnoreCase(System.getenv("TIKA_FALLBACK_PARSER_ENABLED")); }
+
+    // guardrails on each Tika parse, a file that hits one is indexed with the content extracted so far (-1 for no limit)
+    public int TIKA_MAX_CHARS() { return intOrDefault("TIKA_MAX_CHARS", 5 * 1000 * 1000); }
+    public long TIKA_MAX_INPUT_BYTES() { return longOrDefault("TIKA_MAX_INPUT_BYTES", 100 * 1024 * 1024); }
+    public long TIKA_PARSE_TIMEOUT_MS() { return longOrDefault("TIKA_PARSE_TIMEOUT_MS", 60 * 1000); }
+
+    // only write the datahub resources that changed (and delete the ones that went) rather than deleting them all
+    public boolean RESOURCE_SYNC_ENABLED() { return Boolean.parseBoolean(System.getenv("RESOURCE_SYNC_ENABLED")); }
+
+    // Tika results can be cached by a hash of the file, in memory and on local disk (somewhere under /tmp), both off
+    // by default. The disk cache shares /tmp with the files Tika spools while parsing (a zip based file is spooled
+    // whole, up to TIKA_MAX_INPUT_BYTES for each parse running), so it has to leave room for them
+    public long EXTRACTION_CACHE_MEMORY_BYTES() { return longOrDefault("EXTRACTION_CACHE_MEMORY_BYTES", 0); }
+    public String EXTRACTION_CACHE_DIR() { return stringOrDefault("EXTRACTION_CACHE_DIR", "/tmp/extraction-cache"); }
+    public long EXTRACTION_CACHE_DISK_BYTES() { return longOrDefault("EXTRACTION_CACHE_DISK_BYTES", 0); }
+
+    // per stage timings and counters are logged in CloudWatch Embedded Metric Format at the end of each invocation
+    public boolean METRICS_ENABLED() { return !"false".equalsIgnoreCase(System.getenv("METRICS_ENABLED")); }
+    public String METRICS_NAMESPACE() { return stringOrDefault("METRICS_NAMESPACE", "SearchIngester"); }
+
+    // the long running worker (see worker/) that polls an SQS queue itself rather than being invoked by Lambda, each
+    // receive loop handles a batch like one invocation would, and keeps the batch invisible until it's finished
+    public String WORKER_QUEUE_URL() { return System.getenv("WORKER_QUEUE_URL"); }
+    public int WORKER_CONCURRENCY() { return intOrDefault("WORKER_CONCURRENCY", 2 * Runtime.getRuntime().availableProcessors()); }
+    public int WORKER_MAX_MESSAGES() { return intOrDefault("WORKER_MAX_MESSAGES", 10); }
+    public int WORKER_WAIT_TIME_S() { return intOrDefault("WORKER_WAIT_TIME_S", 20); }
+    public int WORKER_VISIBILITY_TIMEOUT_S() { return intOrDefault("WORKER_VISIBILITY_TIMEOUT_S", 60); }
+    public long WORKER_BATCH_TIMEOUT_MS() { return longOrDefault("WORKER_BATCH_TIMEOUT_MS", 15 * 60 * 1000); }
+    // the metrics are shared by every receive loop, so the worker publishes them every so often rather than per batch
+    public long WORKER_METRICS_INTERVAL_MS() { return longOrDefault("WORKER_METRICS_INTERVAL_MS", 60 * 1000); }
+
+    private static String stringOrDefault(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    private static int intOrDefault(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static long longOrDefault(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : Long.parseLong(value.trim());
+    }
 }
@@ -1,24 +1,116 @@
 package search.ingester;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.html.HtmlParser;
 import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import search.ingester.cache.ExtractionCache;
+import search.ingester.cache.ExtractionResult;
+import search.ingester.metrics.Metrics;
+import search.ingester.metrics.Stage;
 import search.ingester.models.Document;
 
 public class FileParser {
 
     private static final int TIKA_MAX_CHARACTER_LIMIT = -1;
 
+    private static final AtomicInteger parseThreadCount = new AtomicInteger();
+
+    // results of previous extractions keyed by a hash of the file, null if there's no cache
+    private final ExtractionCache cache;
+    private final ParseLimits limits;
+    private final ParserRegistry parsers;
+    // limits how many Tika parses run at once, a parse that has been given up on keeps its permit until it actually
+    // stops so parses that ignore being interrupted can't pile up
+    private final Semaphore parsePermits;
+    // parses with a timeout are run here so the calling thread can give up on them, no bigger than the number of
+    // permits, daemon threads as a parser that ignores being interrupted can't be stopped
+    private final ExecutorService parseExecutor;
+
+    public FileParser() {
+        this(null);
+    }
+
+    public FileParser(ExtractionCache cache) {
+        this(cache, ParseLimits.NONE);
+    }
+
+    public FileParser(ExtractionCache cache, ParseLimits limits) {
+        this(cache, limits, new ParserRegistry(ParserRegistry.ALL_FORMATS, true));
+    }
+
+    public FileParser(ExtractionCache cache, ParseLimits limits, ParserRegistry parsers) {
+        this(cache, limits, parsers, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param cache The cache of previous extractions, or null for no cache
+     * @param limits The limits on each parse
+     * @param parsers The parsers to use
+     * @param maxConcurrentParses The most Tika parses running at once, counting any that have timed out but not
+     *                            stopped yet, at least 1
+     */
+    public FileParser(ExtractionCache cache, ParseLimits limits, ParserRegistry parsers, int maxConcurrentParses) {
+        this(cache, limits, parsers, new Semaphore(Math.max(1, maxConcurrentParses)),
+                createParseExecutor(Math.max(1, maxConcurrentParses)));
+    }
+
+    private FileParser(ExtractionCache cache, ParseLimits limits, ParserRegistry parsers, Semaphore parsePermits,
+                       ExecutorService parseExecutor) {
+        this.cache = cache;
+        this.limits = limits;
+        this.parsers = parsers;
+        this.parsePermits = parsePermits;
+        this.parseExecutor = parseExecutor;
+    }
+
+    private static ExecutorService createParseExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "tika-parse-" + parseThreadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public ExtractionCache getCache() { return cache; }
+
+    /**
+     * @return A parser with the same limits and parsers as this one but no cache, for parses whose results shouldn't
+     *         be kept (e.g. warming up). Parses with either count towards the same concurrency limit
+     */
+    public FileParser withoutCache() {
+        return new FileParser(null, limits, parsers, parsePermits, parseExecutor);
+    }
+
     /**
      * Creates a document template from an existing document template with an attached base64 encoded file in the
      * content_base64 field. Attempt to overwrite the relevant parts of the given document template and remove extra
-     * whitespace characters from the content as they are not needed
+     * whitespace characters from the content as they are not needed. A file that hits one of the parse limits gives
+     * whatever content was extracted up to that point, and the document is flagged as having partial content
      *
      * @param document A document template with a base64 encoded file attached in the content_base64 field
      * @return A Document object with the base64 files text content and title in place of the given document template
@@ -28,32 +120,194 @@ public class FileParser {
      */
     public Document parseFile(Document document) throws IOException, SAXException, TikaException {
 
-        // Create auto document parser and try to extract some textual info from the base64 encoded string passed to it
-        BodyContentHandler handler = new BodyContentHandler(TIKA_MAX_CHARACTER_LIMIT);
-        AutoDetectParser parser = new AutoDetectParser();
+        // Publishers often resend the same files, so check whether we've already extracted this one
+        String key = null;
+        if (cache != null) {
+            try (Metrics.Timer timer = Metrics.time(Stage.FILE_HASH)) {
+                key = hashFileBase64(document) + "-" + limits.getCacheKeySuffix();
+            }
+            ExtractionResult cached = cache.get(key);
+            if (cached != null) {
+                return applyExtraction(document, cached);
+            }
+        }
+
+        long inputBytes = document.getFileBase64().length() / 4 * 3;
+        Metrics.countBytes(Stage.TIKA_PARSE, inputBytes);
+
+        InputStream stream = openFileBase64(document);
+        boolean inputTruncated = false;
+        if (limits.getMaxInputBytes() >= 0 && inputBytes > limits.getMaxInputBytes()) {
+            System.out.println(String.format(":: File is ~%d bytes, only parsing the first %d ::",
+                    inputBytes, limits.getMaxInputBytes()));
+            stream = new BoundedInputStream(stream, limits.getMaxInputBytes());
+            inputTruncated = true;
+        }
+
+        // Create a handler to collect the text content, up to the character limit and the deadline, and strip out
+        // all repeated whitespace characters as it goes as we don't need them
+        WhitespaceCollapsingContentHandler text = new WhitespaceCollapsingContentHandler();
+        WriteOutContentHandler writeOut = new WriteOutContentHandler(text, limits.getMaxChars());
+        ContentHandler handler = new BodyContentHandler(writeOut);
         Metadata metadata = new Metadata();
-        InputStream stream = new ByteArrayInputStream(Base64.getDecoder().decode(document.getFileBase64()));
 
-        try {
-            parser.parse(stream, handler, metadata);
-        } catch(SAXException ex) {
-            if (ex.getClass().getCanonicalName() != "org.apache.tika.sax.WriteOutContentHandler$WriteLimitReachedException") {
-                throw ex;
+        // the extension (if we've been given one) helps with working out what type of file it is
+        if (StringUtils.isNotBlank(document.getFileExtension())) {
+            metadata.set(Metadata.RESOURCE_NAME_KEY, "file." + StringUtils.removeStart(document.getFileExtension().trim(), "."));
+        }
+
+        boolean partial = inputTruncated;
+        boolean timedOut = false;
+
+        // Try to extract some textual info from the base64 encoded string passed to it
+        try (Metrics.Timer timer = Metrics.time(Stage.TIKA_PARSE);
+             InputStream in = stream) {
+            parse(in, handler, metadata);
+        } catch (SAXException | TikaException | IOException ex) {
+            if (writeOut.isWriteLimitReached(ex)) {
+                System.out.println(String.format(":: Got more characters than the Tika limit (%d), truncating to limit ::",
+                        limits.getMaxChars()));
+                partial = true;
+            } else if (DeadlineContentHandler.isDeadlineReached(ex)) {
+                System.out.println(String.format(":: Parse took longer than %dms, using the content so far ::",
+                        limits.getTimeoutMs()));
+                partial = true;
+                timedOut = true;
+            } else if (inputTruncated) {
+                // only part of the file was read, so the parser may well not make sense of it
+                System.out.println(String.format(":: Couldn't parse the start of the file :: %s", ex));
             } else {
-                System.out.println(String.format("Got more characters than current Tika limit (%d), truncating to limit", TIKA_MAX_CHARACTER_LIMIT));
+                throw ex;
             }
         }
 
-        // Grab the extracted content from the parser and strip out all repeated whitespace characters as we don't need
-        // them, if no content don't replace the existing content
-        String newContent = handler.toString().replaceAll("\\s+", " ").trim();
-        if (!newContent.isEmpty()) {
-            document.setContent(newContent);
+        // Grab the extracted content from the parser, this is safe to do even if a timed out parse is still writing
+        ExtractionResult extracted = new ExtractionResult(
+                text.toString(), timedOut ? null : metadata.get("title"), partial);
+
+        // how long a parse takes depends on more than the file, so don't keep results cut short by the deadline
+        if (cache != null && !timedOut) {
+            cache.put(key, extracted);
+        }
+
+        return applyExtraction(document, extracted);
+    }
+
+    /**
+     * Parses a file with the registry's parser for its type once there's a parse permit free, with the deadline (if
+     * there is one) starting from then. With a timeout the parse runs on another thread so that a parse which stops
+     * producing SAX events (so doesn't notice its deadline) can still be given up on, and it keeps its permit until
+     * it actually finishes. Waiting for a permit is bounded by the timeout too, so parses stuck holding every permit
+     * leave later files with partial content rather than blocking until the invocation times out
+     */
+    private void parse(InputStream stream, ContentHandler handler, Metadata metadata)
+            throws IOException, SAXException, TikaException {
+        try {
+            if (limits.getTimeoutMs() < 0) {
+                parsePermits.acquire();
+            } else if (!parsePermits.tryAcquire(limits.getTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                // every permit is held by parses that are stuck, so this one would be given up on anyway
+                System.out.println(String.format(":: No Tika parse could start within %dms ::",
+                        limits.getTimeoutMs()));
+                throw new DeadlineContentHandler.DeadlineReachedException();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+
+        if (limits.getTimeoutMs() < 0) {
+            try {
+                parsers.parse(stream, handler, metadata, new ParseContext());
+            } finally {
+                parsePermits.release();
+            }
+            return;
+        }
+
+        ContentHandler deadlineHandler = new DeadlineContentHandler(handler,
+                System.nanoTime() + limits.getTimeoutMs() * 1000000);
+        // whichever of the parse starting and the caller giving up on it comes first, so that a parse given up on
+        // before it started still gives its permit back
+        AtomicBoolean claimed = new AtomicBoolean();
+        Future<?> future;
+        try {
+            future = parseExecutor.submit(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return null;
+                }
+                try {
+                    parsers.parse(stream, deadlineHandler, metadata, new ParseContext());
+                    return null;
+                } finally {
+                    parsePermits.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            parsePermits.release();
+            throw ex;
+        }
+
+        try {
+            future.get(limits.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            giveUp(future, claimed);
+            throw new DeadlineContentHandler.DeadlineReachedException();
+        } catch (InterruptedException ex) {
+            giveUp(future, claimed);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            }
+            if (cause instanceof TikaException) {
+                throw (TikaException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void giveUp(Future<?> future, AtomicBoolean claimed) {
+        if (claimed.compareAndSet(false, true)) {
+            parsePermits.release();
+        }
+        future.cancel(true);
+    }
+
+    /**
+     * Copies what was extracted from a file onto the document it was attached to
+     *
+     * @param document The document the file was attached to
+     * @param extracted What was extracted from the file
+     * @return The given document, with the extracted content and title
+     */
+    private static Document applyExtraction(Document document, ExtractionResult extracted) {
+        // if no content don't replace the existing content
+        if (!extracted.getContent().isEmpty()) {
+            document.setContent(extracted.getContent());
+        }
+
+        if (extracted.isPartial()) {
+            document.setContentPartial(true);
+
+            // rather than fail validation when nothing could be extracted in time, fall back on the title so that
+            // the document can at least be found
+            if (StringUtils.isBlank(document.getContent())) {
+                document.setContent(document.getTitle());
+            }
         }
 
         // If a title exists in the document metadata replace the document title with it
-        if (metadata.get("title") != null) {
-            document.setTitle(String.format("%s - %s", document.getTitle(), metadata.get("title")));
+        if (extracted.getTitle() != null) {
+            document.setTitle(String.format("%s - %s", document.getTitle(), extracted.getTitle()));
         }
 
         // Clear b64 encoded file
@@ -62,6 +316,48 @@ public class FileParser {
         return document;
     }
 
+    /**
+     * Hashes the decoded bytes of the base64 encoded file attached to a document, decoding as it goes
+     *
+     * @param document A document with a base64 encoded file attached in the file_base64 field
+     * @return A hex encoded SHA-256 hash of the file
+     * @throws IOException Thrown if the base64 can't be decoded
+     */
+    public static String hashFileBase64(Document document) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream stream = Base64.getDecoder().wrap(new CharSequenceInputStream(document.getFileBase64()))) {
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Opens a stream over the decoded bytes of the base64 encoded file attached to a document. The file is decoded as
+     * it is read rather than all at once, so the decoded file is never held in memory next to the base64 string
+     *
+     * @param document A document with a base64 encoded file attached in the file_base64 field
+     * @return A stream of the decoded file
+     */
+    public static InputStream openFileBase64(Document document) {
+        return new BufferedInputStream(
+                Base64.getDecoder().wrap(new CharSequenceInputStream(document.getFileBase64())), 64 * 1024);
+    }
+
     /**
      * Not currently used, designed to handle html content
      * 
@@ -72,7 +368,9 @@ public class FileParser {
      * @throws TikaException
      */    
     public Document parseHTMLContentString(Document document) throws IOException, SAXException, TikaException {
-        BodyContentHandler handler = new BodyContentHandler(TIKA_MAX_CHARACTER_LIMIT);
+        WhitespaceCollapsingContentHandler text = new WhitespaceCollapsingContentHandler();
+        WriteOutContentHandler writeOut = new WriteOutContentHandler(text, TIKA_MAX_CHARACTER_LIMIT);
+        BodyContentHandler handler = new BodyContentHandler(writeOut);
         HtmlParser parser = new HtmlParser();
         Metadata metadata = new Metadata();
 
@@ -81,7 +379,7 @@ public class FileParser {
         try {
             parser.parse(stream, handler, metadata, new ParseContext());
         } catch(SAXException ex) {
-            if (ex.getClass().getCanonicalName() != "org.apache.tika.sax.WriteOutContentHandler$WriteLimitReachedException") {
+            if (!writeOut.isWriteLimitReached(ex)) {
                 throw ex;
             } else {
                 System.out.println(String.format("Got more characters than current Tika limit (%d), truncating to limit", TIKA_MAX_CHARACTER_LIMIT));
@@ -90,7 +388,7 @@ public class FileParser {
 
         // Grab the extracted content from the parser and strip out all repeated whitespace characters as we don't need
         // them, if no content don't replace the existing content
-        String newContent = handler.toString().replaceAll("\\s+", " ").trim();
+        String newContent = text.toString();
         if (!newContent.isEmpty()) {
             document.setContent(newContent);
         }
@@ -0,0 +1,178 @@
+package search.ingester;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Works out which indexes a write to an incoming index (the one named in the message) actually goes to. An incoming
+ * index can be routed to several targets, e.g. the live index and a shadow index being rebuilt alongside it, and any
+ * target that's an alias is resolved to the index it writes to so that two targets pointing at the same index (say
+ * during a blue/green alias swap) are only written to once. Alias resolutions are cached for a while, as looking one
+ * up is a request to Elasticsearch. Writes go to the index an alias was resolved to, so after an alias is swapped
+ * they carry on going to the index it used to point at until the resolution expires, and the old index has to be
+ * kept until then
+ */
+public class IndexRouter {
+
+    /**
+     * Looks up the indexes an alias points at
+     */
+    public interface AliasLookup {
+        /**
+         * @param name An alias or index name
+         * @return The indexes the alias points at and whether each is its write index, empty if it isn't an alias
+         */
+        Map<String, Boolean> lookup(String name) throws IOException;
+    }
+
+    private static class Resolved {
+        final List<String> indexes;
+        final long expires;
+
+        Resolved(List<String> indexes, long expires) {
+            this.indexes = indexes;
+            this.expires = expires;
+        }
+    }
+
+    private final Map<String, List<String>> routes;
+    private final long aliasTtlMs;
+    private final AliasLookup aliasLookup;
+
+    private final Map<String, Resolved> resolved = new ConcurrentHashMap<>();
+    // the indexes written to on behalf of a live index, which have to be treated as live too
+    private final Set<String> liveIndexes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param routes The targets of each incoming index, incoming indexes not in here are written to as they are
+     * @param aliasTtlMs How long an alias resolution is kept for, 0 or less doesn't resolve aliases at all
+     * @param aliasLookup Looks up aliases in Elasticsearch
+     */
+    public IndexRouter(Map<String, List<String>> routes, long aliasTtlMs, AliasLookup aliasLookup) {
+        this.routes = routes;
+        this.aliasTtlMs = aliasTtlMs;
+        this.aliasLookup = aliasLookup;
+    }
+
+    /**
+     * Parses routes in the form "website=website,website-next;datahub=datahub-write"
+     *
+     * @param config The routes, may be null or empty for none
+     * @return The targets of each incoming index
+     */
+    public static Map<String, List<String>> parseRoutes(String config) {
+        Map<String, List<String>> routes = new HashMap<>();
+        if (config == null || config.trim().isEmpty()) {
+            return routes;
+        }
+
+        for (String route : config.split(";")) {
+            if (route.trim().isEmpty()) {
+                continue;
+            }
+
+            String[] parts = route.split("=", 2);
+            List<String> targets = new ArrayList<>();
+            if (parts.length == 2) {
+                for (String target : parts[1].split(",")) {
+                    if (!target.trim().isEmpty()) {
+                        targets.add(target.trim());
+                    }
+                }
+            }
+            if (parts[0].trim().isEmpty() || targets.isEmpty()) {
+                throw new IllegalArgumentException(String.format("Index route '%s' should look like " +
+                        "index=target1,target2", route));
+            }
+
+            routes.put(parts[0].trim(), targets);
+        }
+        return routes;
+    }
+
+    public boolean isRouted(String index) {
+        return routes.containsKey(index);
+    }
+
+    /**
+     * @param index The incoming index
+     * @return The indexes to write to, in the order the targets were configured with any duplicates left out
+     */
+    public List<String> route(String index) {
+        List<String> targets = routes.get(index);
+        if (targets == null) {
+            return Collections.singletonList(index);
+        }
+
+        Set<String> indexes = new LinkedHashSet<>();
+        for (String target : targets) {
+            indexes.addAll(resolve(target));
+        }
+
+        if (index.startsWith("live")) {
+            liveIndexes.addAll(indexes);
+        }
+        return new ArrayList<>(indexes);
+    }
+
+    /**
+     * @param index An index written to
+     * @return Whether the index is (or is written to on behalf of) a live index, where deletes have to find something
+     *         to delete
+     */
+    public boolean isLive(String index) {
+        return index.startsWith("live") || liveIndexes.contains(index);
+    }
+
+    /**
+     * @param target A target index or alias
+     * @return The index it writes to, or the target itself if it isn't an alias or can't be resolved
+     */
+    private List<String> resolve(String target) {
+        if (aliasTtlMs <= 0) {
+            return Collections.singletonList(target);
+        }
+
+        long now = System.currentTimeMillis();
+        Resolved cached = resolved.get(target);
+        if (cached != null && cached.expires > now) {
+            return cached.indexes;
+        }
+
+        Map<String, Boolean> aliased;
+        try {
+            aliased = aliasLookup.lookup(target);
+        } catch (IOException | RuntimeException ex) {
+            // leave it to Elasticsearch, and try again next time
+            System.out.println(String.format(":: Couldn't resolve index alias %s, writing to it as it is :: %s",
+                    target, ex));
+            return Collections.singletonList(target);
+        }
+
+        List<String> indexes = new ArrayList<>();
+        for (Map.Entry<String, Boolean> entry : aliased.entrySet()) {
+            if (Boolean.TRUE.equals(entry.getValue())) {
+                indexes.add(entry.getKey());
+            }
+        }
+        if (indexes.isEmpty() && aliased.size() == 1) {
+            // an alias on a single index writes to it without having to be marked as the write index
+            indexes.addAll(aliased.keySet());
+        }
+        if (indexes.isEmpty()) {
+            // not an alias, or one Elasticsearch will refuse to write to, either way it's up to Elasticsearch
+            indexes.add(target);
+        }
+
+        indexes = Collections.unmodifiableList(indexes);
+        resolved.put(target, new Resolved(indexes, now + aliasTtlMs));
+        return indexes;
+    }
+}
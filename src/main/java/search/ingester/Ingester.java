@@ -1,62 +1,222 @@
 package search.ingester;
 
 import javax.json.bind.Jsonb;
-import javax.json.bind.JsonbBuilder;
 import java.io.*;
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.DeleteObjectRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 
+import search.ingester.cache.ExtractionCache;
+import search.ingester.metrics.Metrics;
+import search.ingester.metrics.Stage;
 import search.ingester.models.Message;
 
-public class Ingester implements RequestHandler<SQSEvent, Void> {
+public class Ingester implements RequestHandler<SQSEvent, SQSBatchResponse> {
 
-    // Only set up if we need to read an S3 message, otherwise left as null
-    private AmazonS3 s3Client;
+    private final Components components;
+    private final boolean publishMetrics;
+
+    // S3 messages are only deleted once their writes have actually been sent to Elasticsearch
+    // (keyed by the ID of the SQS message they came from)
+    private Map<String, Message> processedS3Messages = new LinkedHashMap<>();
+
+    /**
+     * Lambda creates the handler once per execution environment, during the init phase, so this is where the shared
+     * components get built and warmed up
+     */
+    public Ingester() {
+        this(Components.get());
+    }
+
+    /**
+     * @param components The components to handle requests with, rather than the shared ones (e.g. for replaying
+     *                   messages locally)
+     */
+    public Ingester(Components components) {
+        this(components, true);
+    }
+
+    /**
+     * @param components The components to handle requests with
+     * @param publishMetrics Whether to publish the metrics at the end of each request. They're recorded for the whole
+     *                       JVM, so where several handlers run at once (e.g. the worker's receive loops) each would
+     *                       publish (and clear) what the others recorded, and they're better published in one place
+     */
+    public Ingester(Components components, boolean publishMetrics) {
+        this.components = components;
+        this.publishMetrics = publishMetrics;
+    }
 
     /**
      * Handle an incoming SQS Message and insert into or delete from the relevant search index on a specified AWS
-     * Elasticsearch index
+     * Elasticsearch index. Every record in the batch is attempted, and only the ones that failed are reported back
+     * so SQS doesn't redeliver the records that were processed fine (needs ReportBatchItemFailures turned on for the
+     * event source mapping)
      *
      * @param event An incoming SQS event
      * @param context Context object for that incoming event
-     * @throws RuntimeException Throws a runtime exception in the case of any caught exceptions
-     * @return Returns null if successful or throws a RuntimeException if something goes wrong
+     * @return The IDs of any SQS messages that failed and should be redelivered
+     */
+    public SQSBatchResponse handleRequest(SQSEvent event, Context context) {
+
+        // leave enough time to report back which messages failed before the Lambda times out
+        long deadline = System.currentTimeMillis() + context.getRemainingTimeInMillis()
+                - components.getEnv().ES_RETRY_DEADLINE_MARGIN_MS();
+
+        Set<String> failedMessageIds = handleRecords(event.getRecords(), components.getProcessor(),
+                components.getElasticService(), deadline);
+
+        List<SQSBatchResponse.BatchItemFailure> failures = new ArrayList<>();
+        for (String messageId : failedMessageIds) {
+            failures.add(new SQSBatchResponse.BatchItemFailure(messageId));
+        }
+
+        if (!failures.isEmpty()) {
+            System.out.println(String.format(":: %d of %d messages failed :: %s",
+                    failures.size(), event.getRecords().size(), failedMessageIds));
+        }
+
+        ExtractionCache cache = components.getFileParser().getCache();
+        if (cache != null) {
+            System.out.println(String.format(":: Extraction cache :: %d hits, %d misses (since init)",
+                    cache.getHits(), cache.getMisses()));
+        }
+
+        RequestCompression compression = components.getElasticService().getRequestCompression();
+        if (compression != null) {
+            System.out.println(String.format(":: Request compression :: %d requests, %d bytes gzipped to %d (since init)",
+                    compression.getRequests(), compression.getBytesBefore(), compression.getBytesAfter()));
+        }
+
+        if (publishMetrics) {
+            publishMetrics(components.getEnv());
+        }
+
+        return new SQSBatchResponse(failures);
+    }
+
+    /**
+     * Publishes the metrics recorded since the last time, or just clears them if metrics are turned off
+     *
+     * @param env The configuration
+     */
+    public static void publishMetrics(Env env) {
+        if (env.METRICS_ENABLED()) {
+            Metrics.publish(env.METRICS_NAMESPACE());
+        } else {
+            Metrics.reset();
+        }
+    }
+
+    /**
+     * Process each SQS record in turn, a failure in one record is recorded and doesn't stop the rest
+     *
+     * @param records The SQS records to process
+     * @param processor The processor to hand each message to
+     * @param elasticService The Elasticsearch service the processor writes with
+     * @param deadline When (epoch millis) requests to Elasticsearch have to stop being retried
+     * @return The IDs of any SQS messages that failed
      */
-    public Void handleRequest(SQSEvent event, Context context) {
-
-        // unless the messages are "batched", we only expect one message,
-        // but use a loop anyway in case they are batched in the future
-        for (SQSMessage msg : event.getRecords()) {
-            
-            // uncomment to log the message body in cloudwatch
-            System.out.println(":: Message received :: ");
-            System.out.println(msg.getBody());
-
-            // workaround Java's checked exceptions
-            // Automatically close `file` handler to sidestep long running lambda keeping in memory file references
-            try (Jsonb jsonb = JsonbBuilder.create()) {
-                // deserialize a Message from the JSON body of the SQS message
-                Message message = jsonb.fromJson(msg.getBody(), Message.class);
-                handleMessage(message, new Processor(new ElasticService(new Env()), new FileParser()));
+    Set<String> handleRecords(List<SQSMessage> records, Processor processor, ElasticService elasticService,
+                              long deadline) {
+
+        Set<String> failedMessageIds = new LinkedHashSet<>();
+
+        // with bulk or async writes turned on, writes may not be sent (or finished) until the end of the batch
+        elasticService.beginBatch(deadline);
+        boolean deferred = elasticService.isBatchDeferred();
+
+        Jsonb jsonb = components.getJsonb();
+
+        // with coalescing turned on every message is deserialized up front, to find the ones a newer message in the
+        // batch makes pointless, those are left out and count as handled
+        Map<String, Message> deserialized = new HashMap<>();
+        Map<String, String> superseded = Collections.emptyMap();
+        if (components.getEnv().BATCH_COALESCING_ENABLED() && records.size() > 1) {
+            for (SQSMessage msg : records) {
+                try {
+                    deserialized.put(msg.getMessageId(), deserialize(jsonb, msg));
+                } catch (Exception ex) {
+                    // it fails again below, and is reported then
+                }
             }
-            catch (Exception ex) {
-                throw new RuntimeException(ex);
+            superseded = BatchCoalescer.findSuperseded(records, deserialized);
+        }
+
+        try {
+            // unless the messages are "batched", we only expect one message,
+            // but use a loop anyway in case they are batched in the future
+            for (SQSMessage msg : records) {
+
+                // uncomment to log the message body in cloudwatch
+                System.out.println(":: Message received :: ");
+                System.out.println(msg.getBody());
+
+                String supersededBy = superseded.get(msg.getMessageId());
+                if (supersededBy != null) {
+                    Message message = deserialized.get(msg.getMessageId());
+                    System.out.println(String.format(":: Skipping message %s, superseded by %s for doc %s in " +
+                            "index %s ::", msg.getMessageId(), supersededBy, message.getDocument().getId(),
+                            message.getIndex()));
+                    Metrics.countDocument("superseded", message.getDocument().getSite());
+                    continue;
+                }
+
+                try {
+                    elasticService.setBatchOwner(msg.getMessageId());
+
+                    // deserialize a Message from the JSON body of the SQS message
+                    Message message = deserialized.remove(msg.getMessageId());
+                    if (message == null) {
+                        message = deserialize(jsonb, msg);
+                    }
+                    handleMessage(msg.getMessageId(), message, processor);
+                }
+                // workaround Java's checked exceptions
+                catch (Exception ex) {
+                    System.out.println(String.format(":: Failed to process message %s :: %s", msg.getMessageId(), ex));
+                    ex.printStackTrace();
+                    failedMessageIds.add(msg.getMessageId());
+                }
+
+                if (!deferred) {
+                    deleteProcessedS3Messages(failedMessageIds);
+                }
             }
         }
+        finally {
+            failedMessageIds.addAll(elasticService.endBatch());
+            deleteProcessedS3Messages(failedMessageIds);
+        }
 
-        // apparently you return null from an AWS Lambda handler on success?
-        return null;
+        return failedMessageIds;
     }
 
-    void handleMessage(Message original, Processor processor) throws Exception {
+    private static Message deserialize(Jsonb jsonb, SQSMessage msg) {
+        Message message;
+        try (Metrics.Timer timer = Metrics.time(Stage.DESERIALIZE)) {
+            message = jsonb.fromJson(msg.getBody(), Message.class);
+        }
+        Metrics.countBytes(Stage.DESERIALIZE, msg.getBody().length());
+        return message;
+    }
+
+    void handleMessage(String messageId, Message original, Processor processor) throws Exception {
 
         // the "real" message might be on S3 storage via the SQS Extended Client
         // in which case we will have two properties pointing to the S3 object
@@ -65,7 +225,6 @@ public class Ingester implements RequestHandler<SQSEvent, Void> {
         Message m;
 
         if (isMessageReallyOnS3) {
-            this.s3Client = getS3Client();
             m = getMessageFromS3(original.getS3BucketName(), original.getS3Key());
         }
         else {
@@ -75,34 +234,51 @@ public class Ingester implements RequestHandler<SQSEvent, Void> {
         processor.process(m);
 
         if (isMessageReallyOnS3) {
-            deleteObjectFromS3(original.getS3BucketName(), original.getS3Key());
+            processedS3Messages.put(messageId, original);
         }    
     }
 
     /**
-     * Extracts a message from an S3 file (JSON)
+     * Deletes the S3 objects of any messages that have been processed and written to Elasticsearch, messages that
+     * failed keep their S3 object so that they can be redelivered. A delete that fails is only logged
+     *
+     * @param failedMessageIds The IDs of the SQS messages that failed
+     */
+    private void deleteProcessedS3Messages(Set<String> failedMessageIds) {
+        for (Map.Entry<String, Message> entry : processedS3Messages.entrySet()) {
+            if (!failedMessageIds.contains(entry.getKey())) {
+                Message m = entry.getValue();
+                try {
+                    deleteObjectFromS3(m.getS3BucketName(), m.getS3Key());
+                } catch (RuntimeException ex) {
+                    // the message was handled, so this mustn't fail it (or the batch), the bucket's lifecycle
+                    // rules will get rid of the object eventually
+                    System.out.println(String.format(":: Couldn't delete s3://%s/%s for message %s :: %s",
+                            m.getS3BucketName(), m.getS3Key(), entry.getKey(), ex));
+                }
+            }
+        }
+        processedS3Messages.clear();
+    }
+
+    /**
+     * Extracts a message from an S3 file (JSON). The JSON is deserialized straight from the S3 object's stream rather
+     * than read into a String first, and the object (along with its HTTP connection) is closed afterwards
      *
      * @param bucket The bucket that the file exists in
      * @param key The full key of the file in the S3 Bucket
      * @return A translated Message object generated from the JSON read from the given S3 file
-     * @throws Exception If the S3 file cannot be streamed down from S3 this error will be thrown
+     * @throws IOException If the S3 file cannot be streamed down from S3 this error will be thrown
      */
-    private Message getMessageFromS3(String bucket, String key) throws Exception {
-        // Get the object reference and build a buffered reader around it
-        S3Object fullObject = s3Client.getObject(new GetObjectRequest(bucket, key));
-        BufferedReader reader = new BufferedReader(new InputStreamReader(fullObject.getObjectContent()));
-
-        // Extract the JSON object as text from the input stream
-        String text = "";
-        String line;
-        while ((line = reader.readLine()) != null){
-            text = text + "\n" + line;
-        }
-
-        // Return the extracted message object from the S3 JSON file
-        // Automatically close `file` handler to sidestep long running lambda keeping in memory file references
-        try (Jsonb jsonb = JsonbBuilder.create()) {
-            return jsonb.fromJson(text, Message.class);
+    private Message getMessageFromS3(String bucket, String key) throws IOException {
+        // the SQS Extended Client always writes the message body as UTF-8
+        // the message is deserialized as it's downloaded, so this stage covers both
+        try (Metrics.Timer timer = Metrics.time(Stage.S3_FETCH);
+             S3Object fullObject = components.getS3Client().getObject(new GetObjectRequest(bucket, key));
+             Reader reader = new BufferedReader(
+                     new InputStreamReader(fullObject.getObjectContent(), StandardCharsets.UTF_8), 64 * 1024)) {
+            Metrics.countBytes(Stage.S3_FETCH, fullObject.getObjectMetadata().getContentLength());
+            return components.getJsonb().fromJson(reader, Message.class);
         }
     }
 
@@ -115,18 +291,6 @@ public class Ingester implements RequestHandler<SQSEvent, Void> {
      */
     private void deleteObjectFromS3(String bucket, String key) {
         DeleteObjectRequest req = new DeleteObjectRequest(bucket, key);
-        s3Client.deleteObject(req);
-    }
-
-    /**
-     * Returns a configured S3 client using environment variables / default provider chains
-     *
-     * @return A configured S3 client
-     */
-    private AmazonS3 getS3Client() {
-        return AmazonS3ClientBuilder.standard()
-                .withRegion(new Env().AWS_REGION())
-                .withCredentials(new DefaultAWSCredentialsProviderChain())
-                .build();
+        components.getS3Client().deleteObject(req);
     }
 }
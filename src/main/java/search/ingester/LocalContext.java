@@ -0,0 +1,64 @@
+package search.ingester;
+
+import java.nio.charset.StandardCharsets;
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * A Lambda context for running the ingester outside of Lambda (the replay tool and the long running worker). The
+ * ingester only needs the remaining time from it, so that requests to Elasticsearch stop being retried in good time,
+ * the rest just name where it's running
+ */
+public class LocalContext implements Context {
+
+    private final String name;
+    private final long deadline;
+
+    /**
+     * @param name What's running the ingester, used for the request ID, function name etc.
+     * @param timeoutMs How long the invocation has, as the Lambda timeout would give it
+     */
+    public LocalContext(String name, long timeoutMs) {
+        this.name = name;
+        this.deadline = System.currentTimeMillis() + timeoutMs;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, deadline - System.currentTimeMillis()));
+    }
+
+    @Override
+    public String getAwsRequestId() { return name; }
+    @Override
+    public String getLogGroupName() { return name; }
+    @Override
+    public String getLogStreamName() { return name; }
+    @Override
+    public String getFunctionName() { return name; }
+    @Override
+    public String getFunctionVersion() { return "$LATEST"; }
+    @Override
+    public String getInvokedFunctionArn() { return name; }
+    @Override
+    public CognitoIdentity getIdentity() { return null; }
+    @Override
+    public ClientContext getClientContext() { return null; }
+    @Override
+    public int getMemoryLimitInMB() { return (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024)); }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return new LambdaLogger() {
+            public void log(String message) {
+                System.out.print(message);
+            }
+
+            public void log(byte[] message) {
+                System.out.print(new String(message, StandardCharsets.UTF_8));
+            }
+        };
+    }
+}
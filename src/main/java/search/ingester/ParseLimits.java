@@ -0,0 +1,39 @@
+package search.ingester;
+
+/**
+ * Limits on how much work Tika does for one file, so that one pathological file can't use up the whole Lambda
+ * timeout or heap. A file that hits a limit is indexed with whatever content was extracted up to that point. -1
+ * means no limit
+ */
+public class ParseLimits {
+
+    public static final ParseLimits NONE = new ParseLimits(-1, -1, -1);
+
+    private final int maxChars;
+    private final long maxInputBytes;
+    private final long timeoutMs;
+
+    /**
+     * @param maxChars The most characters of content to extract
+     * @param maxInputBytes The most bytes of the (decoded) file to parse, anything beyond this is never read
+     * @param timeoutMs How long a parse can take
+     */
+    public ParseLimits(int maxChars, long maxInputBytes, long timeoutMs) {
+        this.maxChars = maxChars;
+        this.maxInputBytes = maxInputBytes;
+        this.timeoutMs = timeoutMs;
+    }
+
+    public int getMaxChars() { return maxChars; }
+    public long getMaxInputBytes() { return maxInputBytes; }
+    public long getTimeoutMs() { return timeoutMs; }
+
+    /**
+     * @return The limits that affect what gets extracted from a file, to go in the extraction cache key so that
+     *         changing them doesn't return results extracted under the old ones. Timeouts aren't included as results
+     *         cut short by a timeout aren't cached
+     */
+    public String getCacheKeySuffix() {
+        return String.format("c%d-b%d", maxChars, maxInputBytes);
+    }
+}
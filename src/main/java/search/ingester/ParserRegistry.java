@@ -0,0 +1,238 @@
+package search.ingester;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Supplier;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TemporaryResources;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MimeTypes;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.parser.html.HtmlParser;
+import org.apache.tika.parser.microsoft.ooxml.OOXMLParser;
+import org.apache.tika.parser.odf.OpenDocumentParser;
+import org.apache.tika.parser.pdf.PDFParser;
+import org.apache.tika.parser.pkg.ZipContainerDetector;
+import org.apache.tika.parser.txt.TXTParser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Parses only the formats we actually ingest, rather than going through AutoDetectParser which loads every parser in
+ * tika-parsers (and everything they depend on) the first time it's used. Each parser is only created the first time a
+ * file of its format turns up and is then reused, as are the detectors. The type is detected from the file's magic
+ * bytes, using the file extension as a hint (which saves opening zip based formats to look inside them), and only
+ * zip files without a useful hint get looked inside. Anything that isn't one of the configured formats can go to a
+ * full AutoDetectParser, also only created when first needed
+ */
+public class ParserRegistry extends AbstractParser {
+
+    public static final List<String> ALL_FORMATS = Collections.unmodifiableList(
+            Arrays.asList("pdf", "ooxml", "odf", "html", "txt"));
+
+    private static final MediaType ZIP = MediaType.application("zip");
+    private static final MediaType OOXML_CONTAINER = MediaType.application("x-tika-ooxml");
+
+    private final List<Format> formats = new ArrayList<>();
+    private final boolean fallbackEnabled;
+    private final LazyParser fallback = new LazyParser(AutoDetectParser::new);
+
+    private final MimeTypes mimeTypes = MimeTypes.getDefaultMimeTypes();
+    private final Detector zipDetector = new ZipContainerDetector();
+
+    /**
+     * @param formats The formats to parse, any of ALL_FORMATS
+     * @param fallbackEnabled Whether to parse files of any other format with a full AutoDetectParser, rather than fail
+     */
+    public ParserRegistry(Collection<String> formats, boolean fallbackEnabled) {
+        for (String name : formats) {
+            Format format = createFormat(name.trim().toLowerCase(Locale.ROOT));
+            if (format == null) {
+                throw new IllegalArgumentException(String.format("Unknown Tika format %s, expected one of %s",
+                        name, ALL_FORMATS));
+            }
+            this.formats.add(format);
+        }
+        this.fallbackEnabled = fallbackEnabled;
+    }
+
+    private static Format createFormat(String name) {
+        switch (name) {
+        case "pdf":
+            return new Format(PDFParser::new, MediaType.application("pdf"));
+        case "ooxml":
+            return new Format(OOXMLParser::new,
+                    MediaType.application("vnd.openxmlformats-officedocument.wordprocessingml.document"),
+                    MediaType.application("vnd.openxmlformats-officedocument.spreadsheetml.sheet"),
+                    MediaType.application("vnd.openxmlformats-officedocument.presentationml.presentation"));
+        case "odf":
+            return new Format(OpenDocumentParser::new,
+                    MediaType.application("vnd.oasis.opendocument.text"),
+                    MediaType.application("vnd.oasis.opendocument.spreadsheet"),
+                    MediaType.application("vnd.oasis.opendocument.presentation"));
+        case "html":
+            return new Format(HtmlParser::new, MediaType.TEXT_HTML, MediaType.application("xhtml+xml"));
+        case "txt":
+            return new Format(TXTParser::new, MediaType.TEXT_PLAIN);
+        default:
+            return null;
+        }
+    }
+
+    @Override
+    public Set<MediaType> getSupportedTypes(ParseContext context) {
+        Set<MediaType> types = new HashSet<>();
+        for (Format format : formats) {
+            types.addAll(format.types);
+        }
+        return types;
+    }
+
+    /**
+     * Detects the type of a file and parses it with the parser for that type. Set Metadata.RESOURCE_NAME_KEY to a
+     * file name to use its extension as a hint. Embedded documents (e.g. files attached to a PDF) are parsed in the
+     * same way
+     */
+    @Override
+    public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+            throws IOException, SAXException, TikaException {
+
+        // detection needs to be able to mark and reset the stream, anything this creates to do that (e.g. a
+        // temporary file) is cleaned up afterwards but the stream itself is left for the caller to close
+        TemporaryResources tmp = new TemporaryResources();
+        try {
+            TikaInputStream tis = TikaInputStream.get(stream, tmp);
+
+            MediaType type = detect(tis, metadata);
+            metadata.set(Metadata.CONTENT_TYPE, type.toString());
+
+            if (context.get(Parser.class) == null) {
+                context.set(Parser.class, this);
+            }
+
+            Parser parser = getParser(type);
+            try {
+                parser.parse(tis, handler, metadata, context);
+            } catch (LinkageError err) {
+                // the lambda jar is minimized, and while it keeps every parser Tika lists along with what they
+                // refer to, anything a parser only loads by name can still be missing
+                throw new TikaException(String.format("Couldn't parse file of type %s, the parser for it isn't " +
+                        "fully packaged", type), err);
+            }
+        } finally {
+            tmp.dispose();
+        }
+    }
+
+    private MediaType detect(TikaInputStream tis, Metadata metadata) throws IOException {
+        // magic bytes and the file name together, a docx file's magic bytes just say it's a zip file for instance
+        // but with a .docx name (and the zip magic bytes) the more specific type is used
+        MediaType type = mimeTypes.detect(tis, metadata);
+
+        if (type.equals(ZIP) || type.equals(OOXML_CONTAINER)) {
+            // this means opening up the zip file to see what's in it, which (as it needs the central directory
+            // at the end of the file) means spooling the whole thing to a temporary file
+            type = zipDetector.detect(tis, metadata);
+        }
+
+        return type;
+    }
+
+    private Parser getParser(MediaType type) throws TikaException {
+        // only the exact types of each format, a subtype of one of them (e.g. application/xml and text/csv are both
+        // text/plain as far as Tika is concerned) isn't what we mean by that format
+        MediaType baseType = type.getBaseType();
+        for (Format format : formats) {
+            if (format.types.contains(baseType)) {
+                return format.parser.get();
+            }
+        }
+
+        if (fallbackEnabled) {
+            return fallback.get();
+        }
+
+        throw new TikaException(String.format("No parser configured for files of type %s", type));
+    }
+
+    /**
+     * Parses each of the files given with every format and the fallback, and exits with an error if any of them can't
+     * be parsed or comes out empty. This is to check the minimized lambda jar still has everything the parsers need
+     * (see the jarcheck profile in the pom)
+     */
+    public static void main(String[] args) throws Exception {
+        ParserRegistry parsers = new ParserRegistry(ALL_FORMATS, true);
+        int failed = 0;
+        for (String file : args) {
+            Metadata metadata = new Metadata();
+            metadata.set(Metadata.RESOURCE_NAME_KEY, file);
+            BodyContentHandler handler = new BodyContentHandler(-1);
+            try (InputStream stream = Files.newInputStream(Paths.get(file))) {
+                parsers.parse(stream, handler, metadata, new ParseContext());
+                if (handler.toString().trim().isEmpty()) {
+                    throw new TikaException("No text extracted");
+                }
+                System.out.println(String.format(":: Parsed %s as %s :: %d characters", file,
+                        metadata.get(Metadata.CONTENT_TYPE), handler.toString().length()));
+            } catch (Exception ex) {
+                System.out.println(String.format(":: Couldn't parse %s :: %s", file, ex));
+                failed++;
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static class Format {
+        final LazyParser parser;
+        final List<MediaType> types;
+
+        Format(Supplier<Parser> parser, MediaType... types) {
+            this.parser = new LazyParser(parser);
+            this.types = Arrays.asList(types);
+        }
+    }
+
+    /**
+     * Creates a parser the first time it is needed, parsers don't keep any state between parses so one instance is
+     * shared by every thread
+     */
+    private static class LazyParser {
+        private final Supplier<Parser> supplier;
+        private volatile Parser parser;
+
+        LazyParser(Supplier<Parser> supplier) {
+            this.supplier = supplier;
+        }
+
+        Parser get() {
+            Parser result = parser;
+            if (result == null) {
+                synchronized (this) {
+                    result = parser;
+                    if (result == null) {
+                        result = supplier.get();
+                        parser = result;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
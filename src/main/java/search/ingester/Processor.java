@@ -2,15 +2,23 @@ package search.ingester;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import javax.validation.ConstraintViolation;
 import javax.validation.Validation;
 import javax.validation.Validator;
-import javax.validation.ValidatorFactory;
 
+import search.ingester.metrics.Metrics;
+import search.ingester.metrics.Stage;
 import search.ingester.models.Document;
 import search.ingester.models.Message;
 
@@ -18,14 +26,34 @@ public class Processor {
 
     private ElasticService elasticService;
     private FileParser fileParser;
+    private Validator validator;
+
+    // resources are prepared on this executor when there is one, otherwise one at a time on the calling thread
+    private ExecutorService resourceExecutor;
+    // whether to only write the datahub resources that changed, rather than delete them all and reindex
+    private boolean resourceSync;
 
     public Processor(ElasticService elasticService, FileParser fileParser) {
+        this(elasticService, fileParser, Validation.buildDefaultValidatorFactory().getValidator());
+    }
+
+    public Processor(ElasticService elasticService, FileParser fileParser, Validator validator) {
+        this(elasticService, fileParser, validator, null, false);
+    }
+
+    public Processor(ElasticService elasticService, FileParser fileParser, Validator validator,
+                     ExecutorService resourceExecutor, boolean resourceSync) {
         this.elasticService = elasticService;
         this.fileParser = fileParser;
+        this.validator = validator;
+        this.resourceExecutor = resourceExecutor;
+        this.resourceSync = resourceSync;
     }
 
     public void process(Message m) throws IOException {
 
+        Metrics.countDocument(m.getVerb(), m.getDocument() == null ? null : m.getDocument().getSite());
+
         switch (m.getVerb()) {
         case "upsert":
             processUpsert(m);
@@ -48,17 +76,33 @@ public class Processor {
         System.out.println(
                 ":: Upserting doc " + doc.getId() + " for site " + doc.getSite() + " in index " + m.getIndex() + " ::");
 
-        deleteDatahubResourcesIfNecessary(m.getIndex(), doc);
+        // in sync mode, compare the incoming resources with the existing ones rather than deleting them all, versioned
+        // messages always work this way as a delete by query can't be versioned
+        Map<String, String> existingResources = null;
+        if ((resourceSync || m.getVersion() != null) && doc.getSite().equals("datahub")) {
+            existingResources = elasticService.getChildFingerprints(m.getIndex(), doc.getId());
+        } else {
+            deleteDatahubResourcesIfNecessary(m.getIndex(), doc);
+        }
+
+        // fingerprint the document as it came in (like the resources), so an unchanged document can be skipped
+        doc.setFingerprint(DocumentFingerprint.compute(doc));
 
         // Prepare main document
         prepareDocument(doc);
 
-        // Process resources if they exist
-        List<Document> resources = prepareResourceDocuments(m.getResources(), doc);
+        // Process resources if they exist, a versioned message writes every resource (even the unchanged ones) so that
+        // they all get its version
+        List<Document> resources = prepareResourceDocuments(m.getResources(), doc,
+                m.getVersion() == null ? existingResources : null);
 
         // Upload main document and resources
-        upsertDocument(m.getIndex(), doc);
-        upsertDatahubResourcesIfAny(m.getIndex(), resources);
+        upsertDocument(m.getIndex(), doc, m.getVersion());
+        upsertDatahubResourcesIfAny(m.getIndex(), resources, m.getVersion());
+
+        if (existingResources != null) {
+            deleteRemovedDatahubResources(m.getIndex(), existingResources, m.getResources(), m.getVersion());
+        }
     }
 
     /**
@@ -72,7 +116,14 @@ public class Processor {
      */
     private void prepareDocument(Document doc) throws IOException {
         extractContentFromFileBase64IfNecessary(doc);
-        DocumentTweaker.setContentTruncatedField(doc);
+        if (Boolean.TRUE.equals(doc.getContentPartial())) {
+            // the fingerprint only covers the document as it came in, so with one the document would never be
+            // parsed again (e.g. once parsing gets more time) as it would always look unchanged
+            doc.setFingerprint(null);
+        }
+        try (Metrics.Timer timer = Metrics.time(Stage.TRUNCATION)) {
+            DocumentTweaker.setContentTruncatedField(doc);
+        }
         DocumentTweaker.setTimestamp(doc);
         validateDocument(doc);
     }    
@@ -88,19 +139,23 @@ public class Processor {
      * 
      * @param parent The parent document that contains these resources
      * @param docs The attached list of resources (documents) for the parent resource
+     * @param existing The fingerprints of the resources already in the index keyed by ID, resources that haven't
+     *                 changed are left out of the output. Null to prepare every resource
      * @return A List of prepared documents ready to be pushed into an ElasticSearch index
      * @throws IOException
      */
-    private List<Document> prepareResourceDocuments(List<Document> docs, Document parent) throws IOException {
+    private List<Document> prepareResourceDocuments(List<Document> docs, Document parent,
+                                                    Map<String, String> existing) throws IOException {
         List<Document> outputs = new ArrayList<Document>();
 
         if (docs != null && !docs.isEmpty()) {
             System.out.println(":: Preparing " + docs.size() + " resources for indexing :: ");
-            
+
+            Map<String, Integer> occurrences = new HashMap<>();
+
             for (Document doc : docs) {
-                // TODO ...construct a stable ID from the docId and the title
-                // elasticsearch needs an ID but an ID of a "resource" is never really surfaced
-                doc.setId(UUID.randomUUID().toString());
+                int occurrence = occurrences.merge(DocumentTweaker.getResourceIdentity(doc), 1, Integer::sum);
+                DocumentTweaker.setStableResourceId(doc, parent, occurrence);
 
                 // ensure the site it set (it might not have been in the incoming message)
                 doc.setSite(parent.getSite());
@@ -113,26 +168,90 @@ public class Processor {
                 // grab some generic info from the parent that should just be copied to the resources
                 // i.e. keywords, published date
                 doc.setKeywords(parent.getKeywords());
-                
-                prepareDocument(doc);
 
+                // fingerprint the resource as it came in, before the file is swapped for its content
+                doc.setFingerprint(DocumentFingerprint.compute(doc));
+
+                if (existing != null && doc.getFingerprint().equals(existing.get(doc.getId()))) {
+                    continue;
+                }
+                
                 outputs.add(doc);
             }
-            return outputs;
+
+            if (existing != null) {
+                System.out.println(String.format(":: %d of %d resources have changed ::", outputs.size(), docs.size()));
+            }
+
+            if (resourceExecutor == null || outputs.size() <= 1) {
+                for (Document doc : outputs) {
+                    prepareDocument(doc);
+                }
+            } else {
+                prepareDocumentsInParallel(outputs);
+            }
         }
 
         return outputs;
     }    
 
+    /**
+     * Runs prepareDocument for each document on the resource executor. The documents are prepared in place so the
+     * order of the list doesn't change, and as soon as any document fails the rest are cancelled and that failure is
+     * thrown
+     *
+     * @param docs The documents to prepare
+     * @throws IOException
+     */
+    private void prepareDocumentsInParallel(List<Document> docs) throws IOException {
+        CompletionService<Document> completionService = new ExecutorCompletionService<>(resourceExecutor);
+        List<Future<Document>> futures = new ArrayList<>();
+
+        for (Document doc : docs) {
+            futures.add(completionService.submit(() -> {
+                prepareDocument(doc);
+                return doc;
+            }));
+        }
+
+        try {
+            // take them as they complete (rather than in order) so that a failure is noticed straight away
+            for (int i = 0; i < futures.size(); i++) {
+                completionService.take().get();
+            }
+        } catch (ExecutionException ex) {
+            cancelAll(futures);
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException ex) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void cancelAll(List<Future<Document>> futures) {
+        for (Future<Document> future : futures) {
+            future.cancel(true);
+        }
+    }
+
     /**
      * Upserts a prepared document into the current ElasticSearch index
      * 
      * @param index The index to put document into on the instance
      * @param doc The document to put into the given index
+     * @param version The version of the message the document came from, null if it isn't versioned
      * @throws IOException
      */
-    private void upsertDocument(String index, Document doc) throws IOException {
-        elasticService.putDocument(index, doc);
+    private void upsertDocument(String index, Document doc, Long version) throws IOException {
+        elasticService.putDocument(index, doc, version);
     }
 
     /**
@@ -140,14 +259,40 @@ public class Processor {
      * 
      * @param index The index to put the attached documents into on the instance
      * @param resources The list of resources (documents) to be put into the given index
+     * @param version The version of the message the resources came from, null if it isn't versioned
      * @throws IOException
      */
-    private void upsertDatahubResourcesIfAny(String index, List<Document> resources) throws IOException {
+    private void upsertDatahubResourcesIfAny(String index, List<Document> resources, Long version)
+            throws IOException {
         for (Document resource: resources) {
-            upsertDocument(index, resource);
+            upsertDocument(index, resource, version);
         }
     }    
 
+    /**
+     * Deletes the resources that are in the index but weren't in the incoming message, used in sync mode instead of
+     * deleting all the resources up front
+     *
+     * @param index The index the resources are in
+     * @param existing The fingerprints of the resources that were already in the index keyed by ID
+     * @param incoming The resources in the incoming message (with their stable IDs set)
+     * @param version The version of the message, null if it isn't versioned
+     * @throws IOException
+     */
+    private void deleteRemovedDatahubResources(String index, Map<String, String> existing, List<Document> incoming,
+                                               Long version) throws IOException {
+        Set<String> removed = new HashSet<>(existing.keySet());
+        if (incoming != null) {
+            for (Document doc : incoming) {
+                removed.remove(doc.getId());
+            }
+        }
+
+        for (String id : removed) {
+            elasticService.deleteDocument(index, id, version);
+        }
+    }
+
     private void deleteDatahubResourcesIfNecessary(String index, Document doc) throws IOException {
 
         // if this is a datahub doc, delete any existing resources
@@ -170,10 +315,11 @@ public class Processor {
         }
     }
 
-    private void validateDocument(Document doc) {
-        ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
-        Validator validator = factory.getValidator();
-        Set<ConstraintViolation<Document>> violations = validator.validate(doc);
+    void validateDocument(Document doc) {
+        Set<ConstraintViolation<Document>> violations;
+        try (Metrics.Timer timer = Metrics.time(Stage.VALIDATION)) {
+            violations = validator.validate(doc);
+        }
 
         if (violations.size() > 0) {
             throw new RuntimeException(violations.stream()
@@ -189,9 +335,15 @@ public class Processor {
         System.out.println(
                 ":: Deleting doc " + doc.getId() + " for site " + doc.getSite() + " in index " + m.getIndex() + " ::");
 
-        // delete any child resources, and the document itself
-        deleteDatahubResourcesIfNecessary(index, m.getDocument());
-        elasticService.deleteDocument(index, doc.getId());
+        // delete any child resources, and the document itself. A versioned delete has to delete the resources one by
+        // one with its version, so that a delete older than the resources leaves them alone
+        if (m.getVersion() != null && doc.getSite().equals("datahub")) {
+            Map<String, String> existingResources = elasticService.getChildFingerprints(index, doc.getId());
+            deleteRemovedDatahubResources(index, existingResources, null, m.getVersion());
+        } else {
+            deleteDatahubResourcesIfNecessary(index, m.getDocument());
+        }
+        elasticService.deleteDocument(index, doc.getId(), m.getVersion());
     }
 
     private void processSpike(Message m) throws IOException {
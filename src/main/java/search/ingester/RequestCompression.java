@@ -0,0 +1,210 @@
+package search.ingester;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+
+/**
+ * Builds gzip compressed index and bulk requests for the low level REST client. The high level client has no way
+ * to compress a request body, and it can't be done by an http interceptor either, as the async http client has
+ * already taken hold of the body by the time interceptors run. Building the compressed body up front means the SigV4
+ * interceptor hashes exactly the bytes that are sent
+ */
+public class RequestCompression {
+
+    private static final RequestOptions GZIP_OPTIONS;
+    static {
+        RequestOptions.Builder options = RequestOptions.DEFAULT.toBuilder();
+        options.addHeader("Content-Encoding", "gzip");
+        GZIP_OPTIONS = options.build();
+    }
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+
+    private final long minBytes;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+
+    /**
+     * @param minBytes The smallest (uncompressed) body worth compressing, small bodies don't shrink enough to make
+     *                 up for the time spent compressing them
+     */
+    public RequestCompression(long minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    public boolean shouldCompress(long bodyBytes) {
+        return bodyBytes >= minBytes;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getBytesBefore() {
+        return bytesBefore.get();
+    }
+
+    public long getBytesAfter() {
+        return bytesAfter.get();
+    }
+
+    public Request index(IndexRequest req) throws IOException {
+        // an untyped request goes to the typeless _doc endpoint, as the high level client does
+        Request request = new Request("PUT", String.format("/%s/%s/%s",
+                encode(req.index()), req.type() == null ? "_doc" : encode(req.type()), encode(req.id())));
+        if (req.versionType() != VersionType.INTERNAL) {
+            request.addParameter("version", Long.toString(req.version()));
+            request.addParameter("version_type", VersionType.toString(req.versionType()));
+        }
+        request.setEntity(compress(out -> req.source().writeTo(out), ContentType.APPLICATION_JSON));
+        request.setOptions(GZIP_OPTIONS);
+        return request;
+    }
+
+    public Request bulk(BulkRequest req) throws IOException {
+        Request request = new Request("POST", "/_bulk");
+        request.setEntity(compress(out -> writeBulkBody(req, out), NDJSON));
+        request.setOptions(GZIP_OPTIONS);
+        return request;
+    }
+
+    /**
+     * Writes the newline delimited body of a bulk request, a line of metadata for each action followed by the
+     * document source for index actions
+     */
+    private static void writeBulkBody(BulkRequest req, OutputStream out) throws IOException {
+        for (DocWriteRequest<?> action : req.requests()) {
+            String opType = action.opType() == DocWriteRequest.OpType.DELETE ? "delete" : "index";
+
+            XContentBuilder metadata = XContentFactory.jsonBuilder();
+            metadata.startObject()
+                    .startObject(opType)
+                    .field("_index", action.index());
+            if (action.type() != null) {
+                metadata.field("_type", action.type());
+            }
+            metadata.field("_id", action.id());
+            if (action.versionType() != VersionType.INTERNAL) {
+                metadata.field("version", action.version())
+                        .field("version_type", VersionType.toString(action.versionType()));
+            }
+            metadata.endObject()
+                    .endObject();
+            BytesReference.bytes(metadata).writeTo(out);
+            out.write('\n');
+
+            if (action instanceof IndexRequest) {
+                ((IndexRequest) action).source().writeTo(out);
+                out.write('\n');
+            }
+        }
+    }
+
+    private ByteArrayEntity compress(BodyWriter body, ContentType contentType) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        CountingOutputStream uncompressed;
+
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024)) {
+            uncompressed = new CountingOutputStream(gzip);
+            body.writeTo(uncompressed);
+        }
+
+        requests.incrementAndGet();
+        bytesBefore.addAndGet(uncompressed.count);
+        bytesAfter.addAndGet(compressed.size());
+
+        return new ByteArrayEntity(compressed.toByteArray(), contentType);
+    }
+
+    /**
+     * Parses the body of a response from the low level client into one of the high level client's response types
+     */
+    public static <T> T parse(Response response, CheckedFunction<XContentParser, T, IOException> parser)
+            throws IOException {
+        try (InputStream in = response.getEntity().getContent();
+             XContentParser xContentParser = XContentType.JSON.xContent().createParser(
+                     NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, in)) {
+            return parser.apply(xContentParser);
+        }
+    }
+
+    /**
+     * Adapts a high level client listener to the low level client's, parsing the response on the way
+     */
+    public static <T> ResponseListener listener(ActionListener<T> listener,
+                                                CheckedFunction<XContentParser, T, IOException> parser) {
+        return new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                T parsed;
+                try {
+                    parsed = parse(response, parser);
+                } catch (IOException | RuntimeException ex) {
+                    listener.onFailure(ex);
+                    return;
+                }
+                listener.onResponse(parsed);
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                listener.onFailure(ex);
+            }
+        };
+    }
+
+    private static String encode(String pathPart) throws UnsupportedEncodingException {
+        return URLEncoder.encode(pathPart, "UTF-8").replace("+", "%20");
+    }
+
+    private interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
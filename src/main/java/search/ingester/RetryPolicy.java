@@ -0,0 +1,68 @@
+package search.ingester;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.client.ResponseException;
+
+/**
+ * Decides whether a failed request to Elasticsearch is worth trying again and how long to wait first. The wait
+ * doubles with each attempt up to a maximum, with "full jitter" (a random wait between zero and that) so that lots of
+ * Lambda instances pushed back at the same time don't all come back at the same time too
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+
+    /**
+     * @param maxAttempts The most times a request is sent, including the first
+     * @param baseDelayMs The most to wait before the first retry
+     * @param maxDelayMs The most to wait before any retry
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * @param attempt How many attempts have been made so far, starting from 1
+     * @param deadline When (in epoch millis) everything has to be finished by
+     * @return How long to wait before trying again, or -1 to give up as there are no attempts or time left
+     */
+    public long getDelay(int attempt, long deadline) {
+        if (attempt >= maxAttempts) {
+            return -1;
+        }
+
+        long cap = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 30));
+        long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+
+        if (System.currentTimeMillis() + delay >= deadline) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * The cluster is overloaded (429, too many requests, e.g. a full write queue) or something between here and it
+     * is (502, 503, 504), none of which mean there's anything wrong with the request itself
+     */
+    public static boolean isRetryable(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    public static boolean isRetryable(Exception ex) {
+        if (ex instanceof ElasticsearchStatusException) {
+            return isRetryable(((ElasticsearchStatusException) ex).status().getStatus());
+        }
+        if (ex instanceof ResponseException) {
+            return isRetryable(((ResponseException) ex).getResponse().getStatusLine().getStatusCode());
+        }
+        // anything else at the network level (timeouts, dropped connections) is most likely temporary, and every
+        // request sent is safe to repeat as documents are always written with their ID
+        return ex instanceof IOException;
+    }
+}
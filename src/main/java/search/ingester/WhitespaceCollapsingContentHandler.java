@@ -0,0 +1,67 @@
+package search.ingester;
+
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Collects the text of a document as Tika writes it, collapsing every run of whitespace into a single space as it
+ * goes, so that the result is the same as handler.toString().replaceAll("\\s+", " ").trim() but without building the
+ * full uncollapsed text and then copying it over again (several times) to collapse it
+ *
+ * The methods are synchronized so the text can be read from another thread while a timed out parse is still writing
+ */
+public class WhitespaceCollapsingContentHandler extends DefaultHandler {
+
+    private final StringBuilder text = new StringBuilder();
+    // whether whitespace has been seen since the last character written, carried over between calls as a run of
+    // whitespace can be split across them
+    private boolean pendingSpace = false;
+
+    @Override
+    public synchronized void characters(char[] ch, int start, int length) {
+        append(ch, start, length);
+    }
+
+    @Override
+    public synchronized void ignorableWhitespace(char[] ch, int start, int length) {
+        append(ch, start, length);
+    }
+
+    private void append(char[] ch, int start, int length) {
+        int end = start + length;
+        for (int i = start; i < end; i++) {
+            char c = ch[i];
+            if (isWhitespace(c)) {
+                pendingSpace = true;
+            } else {
+                if (pendingSpace) {
+                    text.append(' ');
+                    pendingSpace = false;
+                }
+                text.append(c);
+            }
+        }
+    }
+
+    /**
+     * The same characters as \s in a regex (without UNICODE_CHARACTER_CLASS)
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * @return The collapsed text, trimmed in the same way as String.trim
+     */
+    @Override
+    public synchronized String toString() {
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return text.substring(start, end);
+    }
+}
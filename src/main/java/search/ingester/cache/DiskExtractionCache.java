@@ -0,0 +1,162 @@
+package search.ingester.cache;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A cache that keeps results as files in a local directory (on Lambda that has to be somewhere under /tmp), so they
+ * outlive anything held in memory for as long as the execution environment lives. Once the files take up more than
+ * the limit, the least recently used ones are deleted
+ */
+public class DiskExtractionCache implements ExtractionCache {
+
+    private static final String SUFFIX = ".extracted";
+    private static final Path WRITABLE = Paths.get("/tmp");
+
+    private final Path dir;
+    private final long maxBytes;
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public DiskExtractionCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+
+        Files.createDirectories(dir);
+        for (Path file : listFiles()) {
+            currentBytes += Files.size(file);
+        }
+    }
+
+    /**
+     * Checks a configured cache directory is somewhere that can be written to, on Lambda that's only under /tmp
+     *
+     * @param dir The configured directory
+     * @return The directory as a normalized absolute path
+     * @throws IllegalArgumentException If it isn't an absolute path under /tmp (or is /tmp itself, as the cache
+     *                                  deletes files from its directory)
+     */
+    public static Path checkDir(String dir) {
+        Path path = Paths.get(dir).normalize();
+        if (!path.isAbsolute() || !path.startsWith(WRITABLE) || path.equals(WRITABLE)) {
+            throw new IllegalArgumentException(String.format("The extraction cache directory has to be under %s, " +
+                    "not %s", WRITABLE, dir));
+        }
+        return path;
+    }
+
+    @Override
+    public synchronized ExtractionResult get(String key) {
+        Path file = dir.resolve(key + SUFFIX);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            ExtractionResult result = new ExtractionResult(readString(in), readString(in), in.readBoolean());
+
+            // keep track of when it was last used for eviction
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits++;
+            return result;
+        } catch (NoSuchFileException ex) {
+            misses++;
+            return null;
+        } catch (IOException ex) {
+            System.out.println(String.format(":: Couldn't read extraction cache file %s :: %s", file, ex));
+            misses++;
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, ExtractionResult result) {
+        Path file = dir.resolve(key + SUFFIX);
+        Path tmp = dir.resolve(key + ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                writeString(out, result.getContent());
+                writeString(out, result.getTitle());
+                out.writeBoolean(result.isPartial());
+            }
+
+            long previousSize = Files.exists(file) ? Files.size(file) : 0;
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            currentBytes += Files.size(file) - previousSize;
+
+            evictIfNecessary();
+        } catch (IOException ex) {
+            // the cache is only an optimisation, e.g. /tmp might be full
+            System.out.println(String.format(":: Couldn't write extraction cache file %s :: %s", file, ex));
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void evictIfNecessary() throws IOException {
+        if (currentBytes <= maxBytes) {
+            return;
+        }
+
+        List<Path> files = listFiles();
+        files.sort(Comparator.comparing(DiskExtractionCache::lastModified));
+
+        for (Path file : files) {
+            if (currentBytes <= maxBytes) {
+                break;
+            }
+            long size = Files.size(file);
+            Files.deleteIfExists(file);
+            currentBytes -= size;
+        }
+    }
+
+    private List<Path> listFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(SUFFIX))
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException ex) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized long getHits() { return hits; }
+
+    @Override
+    public synchronized long getMisses() { return misses; }
+}
@@ -0,0 +1,23 @@
+package search.ingester.cache;
+
+/**
+ * A cache of Tika extraction results keyed by a hash of the file's contents, so that a file which has been seen
+ * before doesn't need to be parsed again. Implementations must be safe to use from more than one thread
+ */
+public interface ExtractionCache {
+
+    /**
+     * @param key The hash of the file's decoded bytes
+     * @return The cached result, or null if there isn't one
+     */
+    ExtractionResult get(String key);
+
+    /**
+     * @param key The hash of the file's decoded bytes
+     * @param result The result of extracting the file
+     */
+    void put(String key, ExtractionResult result);
+
+    long getHits();
+    long getMisses();
+}
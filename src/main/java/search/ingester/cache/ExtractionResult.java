@@ -0,0 +1,34 @@
+package search.ingester.cache;
+
+/**
+ * What Tika extracted from a file, i.e. the (whitespace collapsed) text content and the title from the file's
+ * metadata, either of which may be empty / null, and whether the content is only part of the file's as a parse limit
+ * was hit
+ */
+public class ExtractionResult {
+
+    private final String content;
+    private final String title;
+    private final boolean partial;
+
+    public ExtractionResult(String content, String title) {
+        this(content, title, false);
+    }
+
+    public ExtractionResult(String content, String title, boolean partial) {
+        this.content = content;
+        this.title = title;
+        this.partial = partial;
+    }
+
+    public String getContent() { return content; }
+    public String getTitle() { return title; }
+    public boolean isPartial() { return partial; }
+
+    /**
+     * @return Roughly how much heap this result takes up, used for size based eviction
+     */
+    public long estimatedBytes() {
+        return 2L * ((content == null ? 0 : content.length()) + (title == null ? 0 : title.length())) + 64;
+    }
+}
@@ -0,0 +1,62 @@
+package search.ingester.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory least recently used cache that evicts results once their total (estimated) size goes over a limit
+ */
+public class MemoryExtractionCache implements ExtractionCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, ExtractionResult> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public MemoryExtractionCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public synchronized ExtractionResult get(String key) {
+        ExtractionResult result = entries.get(key);
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void put(String key, ExtractionResult result) {
+        long size = result.estimatedBytes();
+        if (size > maxBytes) {
+            // never going to fit, and would push everything else out
+            return;
+        }
+
+        ExtractionResult previous = entries.put(key, result);
+        if (previous != null) {
+            currentBytes -= previous.estimatedBytes();
+        }
+        currentBytes += size;
+
+        // the iterator goes from least to most recently used
+        Iterator<Map.Entry<String, ExtractionResult>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            currentBytes -= it.next().getValue().estimatedBytes();
+            it.remove();
+        }
+    }
+
+    @Override
+    public synchronized long getHits() { return hits; }
+
+    @Override
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized int size() { return entries.size(); }
+}
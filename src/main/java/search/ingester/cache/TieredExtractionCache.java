@@ -0,0 +1,51 @@
+package search.ingester.cache;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chains caches together from fastest to slowest (e.g. memory then disk), a hit in a slower tier is copied back up
+ * into the faster tiers and new results are put into every tier
+ */
+public class TieredExtractionCache implements ExtractionCache {
+
+    private final List<ExtractionCache> tiers;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public TieredExtractionCache(List<ExtractionCache> tiers) {
+        this.tiers = tiers;
+    }
+
+    @Override
+    public ExtractionResult get(String key) {
+        for (int i = 0; i < tiers.size(); i++) {
+            ExtractionResult result = tiers.get(i).get(key);
+            if (result != null) {
+                for (int j = 0; j < i; j++) {
+                    tiers.get(j).put(key, result);
+                }
+                hits.incrementAndGet();
+                return result;
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public void put(String key, ExtractionResult result) {
+        for (ExtractionCache tier : tiers) {
+            tier.put(key, result);
+        }
+    }
+
+    @Override
+    public long getHits() { return hits.get(); }
+
+    @Override
+    public long getMisses() { return misses.get(); }
+
+    public List<ExtractionCache> getTiers() { return tiers; }
+}
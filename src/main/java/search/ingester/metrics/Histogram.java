@@ -0,0 +1,52 @@
+package search.ingester.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts values into exponentially sized buckets (each 25% wider than the last), so that percentiles can be worked
+ * out to within a bucket without keeping every value. Everything from a microsecond to a few hours fits in fewer
+ * than the 100 distinct values CloudWatch accepts for one metric in one log line
+ */
+public class Histogram {
+
+    private static final double GROWTH = 1.25;
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+    private static final double MIN_VALUE = 0.001;
+
+    private final TreeMap<Integer, Long> buckets = new TreeMap<>();
+    private long count = 0;
+    private double sum = 0;
+
+    public synchronized void record(double value) {
+        int bucket = value < MIN_VALUE ? Integer.MIN_VALUE : (int) Math.floor(Math.log(value) / LOG_GROWTH);
+        buckets.merge(bucket, 1L, Long::sum);
+        count++;
+        sum += value;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return The count of values in each bucket keyed by a representative value for the bucket (the geometric
+     *         middle of it), smallest first
+     */
+    public synchronized Map<Double, Long> getBuckets() {
+        Map<Double, Long> values = new TreeMap<>();
+        for (Map.Entry<Integer, Long> bucket : buckets.entrySet()) {
+            double value = bucket.getKey() == Integer.MIN_VALUE ? 0 : Math.pow(GROWTH, bucket.getKey() + 0.5);
+            values.merge(round(value), bucket.getValue(), Long::sum);
+        }
+        return values;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
@@ -0,0 +1,183 @@
+package search.ingester.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Records how long each stage of processing takes along with a few counters, and publishes them as CloudWatch
+ * Embedded Metric Format log lines. CloudWatch picks the metrics out of the logs itself, so there are no extra API
+ * calls to make. Everything is recorded in one place for the whole execution environment (like the ES client) and
+ * cleared when published, so each invocation publishes what happened during it
+ */
+public final class Metrics {
+
+    // CloudWatch takes at most 100 values for one metric in one log line
+    static final int MAX_VALUES_PER_LINE = 100;
+
+    /**
+     * Everything recorded since the last publish. Publishing swaps in a fresh one rather than removing entries from
+     * this one, so recording carries on into the fresh one instead of racing with the removals (only a value recorded
+     * in the instant of the swap can still miss both)
+     */
+    private static class Recorded {
+        final Map<Stage, Histogram> durations = new ConcurrentHashMap<>();
+        final Map<Stage, LongAdder> bytes = new ConcurrentHashMap<>();
+        // keyed by [verb, site]
+        final Map<List<String>, LongAdder> documents = new ConcurrentHashMap<>();
+    }
+
+    private static final AtomicReference<Recorded> recorded = new AtomicReference<>(new Recorded());
+
+    private Metrics() {
+    }
+
+    /**
+     * Times a stage until the returned timer is closed, for use in a try-with-resources block
+     */
+    public static Timer time(Stage stage) {
+        return new Timer(stage, System.nanoTime());
+    }
+
+    /**
+     * Records the time a stage took, for stages that don't finish in the same block they start in (e.g. async
+     * requests)
+     *
+     * @param stage The stage
+     * @param startNanos When the stage started, from System.nanoTime
+     */
+    public static void recordTime(Stage stage, long startNanos) {
+        double millis = (System.nanoTime() - startNanos) / 1e6;
+        recorded.get().durations.computeIfAbsent(stage, s -> new Histogram()).record(millis);
+    }
+
+    public static void countBytes(Stage stage, long count) {
+        recorded.get().bytes.computeIfAbsent(stage, s -> new LongAdder()).add(count);
+    }
+
+    public static void countDocument(String verb, String site) {
+        recorded.get().documents.computeIfAbsent(Arrays.asList(String.valueOf(verb), String.valueOf(site)), k -> new LongAdder())
+                .increment();
+    }
+
+    /**
+     * Writes everything recorded since the last time to the log in Embedded Metric Format, and clears it
+     *
+     * @param namespace The CloudWatch namespace to put the metrics in
+     */
+    public static void publish(String namespace) {
+        for (String line : drain(namespace, System.currentTimeMillis())) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Clears everything recorded without publishing it
+     */
+    public static void reset() {
+        recorded.set(new Recorded());
+    }
+
+    static List<String> drain(String namespace, long timestamp) {
+        Recorded drained = recorded.getAndSet(new Recorded());
+        List<String> lines = new ArrayList<>();
+
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = drained.durations.get(stage);
+            LongAdder stageBytes = drained.bytes.get(stage);
+            if (histogram == null && stageBytes == null) {
+                continue;
+            }
+
+            // EMF wants a plain array of values, so each bucket's value is repeated once per value counted in it,
+            // spread over as many lines as it takes
+            List<JsonArrayBuilder> durationLines = new ArrayList<>();
+            if (histogram != null) {
+                JsonArrayBuilder values = null;
+                int onLine = 0;
+                for (Map.Entry<Double, Long> bucket : histogram.getBuckets().entrySet()) {
+                    for (long i = 0; i < bucket.getValue(); i++) {
+                        if (values == null || onLine == MAX_VALUES_PER_LINE) {
+                            values = Json.createArrayBuilder();
+                            durationLines.add(values);
+                            onLine = 0;
+                        }
+                        values.add(bucket.getKey());
+                        onLine++;
+                    }
+                }
+            }
+
+            for (int i = 0; i < Math.max(1, durationLines.size()); i++) {
+                JsonArrayBuilder definitions = Json.createArrayBuilder();
+                JsonObjectBuilder line = Json.createObjectBuilder().add("Stage", stage.getMetricName());
+
+                if (i < durationLines.size()) {
+                    definitions.add(metric("Duration", "Milliseconds"));
+                    line.add("Duration", durationLines.get(i));
+                }
+
+                // bytes only go on the first line for the stage so they're only counted once
+                if (i == 0 && stageBytes != null) {
+                    definitions.add(metric("Bytes", "Bytes"));
+                    line.add("Bytes", stageBytes.sum());
+                }
+
+                lines.add(line.add("_aws", metadata(namespace, timestamp, definitions, "Stage")).build().toString());
+            }
+        }
+
+        for (Map.Entry<List<String>, LongAdder> count : drained.documents.entrySet()) {
+            lines.add(Json.createObjectBuilder()
+                    .add("_aws", metadata(namespace, timestamp,
+                            Json.createArrayBuilder().add(metric("Documents", "Count")), "Verb", "Site"))
+                    .add("Verb", count.getKey().get(0))
+                    .add("Site", count.getKey().get(1))
+                    .add("Documents", count.getValue().sum())
+                    .build().toString());
+        }
+
+        return lines;
+    }
+
+    private static JsonObjectBuilder metric(String name, String unit) {
+        return Json.createObjectBuilder().add("Name", name).add("Unit", unit);
+    }
+
+    private static JsonObjectBuilder metadata(String namespace, long timestamp, JsonArrayBuilder definitions,
+                                              String... dimensions) {
+        JsonArrayBuilder dimensionSet = Json.createArrayBuilder();
+        for (String dimension : dimensions) {
+            dimensionSet.add(dimension);
+        }
+
+        return Json.createObjectBuilder()
+                .add("Timestamp", timestamp)
+                .add("CloudWatchMetrics", Json.createArrayBuilder().add(Json.createObjectBuilder()
+                        .add("Namespace", namespace)
+                        .add("Dimensions", Json.createArrayBuilder().add(dimensionSet))
+                        .add("Metrics", definitions)));
+    }
+
+    public static class Timer implements AutoCloseable {
+        private final Stage stage;
+        private final long startNanos;
+
+        private Timer(Stage stage, long startNanos) {
+            this.stage = stage;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void close() {
+            recordTime(stage, startNanos);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package search.ingester.metrics;
+
+/**
+ * The stages of processing a message that are timed, the name is what shows up as the Stage dimension in CloudWatch
+ */
+public enum Stage {
+    S3_FETCH("S3Fetch"),
+    DESERIALIZE("Deserialize"),
+    FILE_HASH("FileHash"),
+    // the base64 file is decoded as Tika reads it, so decoding is part of this stage
+    TIKA_PARSE("TikaParse"),
+    TRUNCATION("Truncation"),
+    VALIDATION("Validation"),
+    ES_INDEX("EsIndex"),
+    ES_DELETE("EsDelete"),
+    ES_DELETE_BY_QUERY("EsDeleteByQuery"),
+    ES_SEARCH("EsSearch"),
+    ES_MULTI_GET("EsMultiGet"),
+    ES_BULK("EsBulk");
+
+    private final String metricName;
+
+    Stage(String metricName) {
+        this.metricName = metricName;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+}
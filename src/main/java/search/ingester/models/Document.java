@@ -73,6 +73,13 @@ public class Document {
     @NotBlank
     @JsonbProperty("timestamp_utc")
     private String timestampUtc;
+
+    @JsonbProperty("fingerprint")
+    private String fingerprint;
+
+    // set when the content extracted from the file is only part of it, as a parse limit was hit
+    @JsonbProperty("content_partial")
+    private Boolean contentPartial;
     
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
@@ -122,6 +129,12 @@ public class Document {
     public String getTimestampUtc() { return timestampUtc; }
     public void setTimestampUtc(String timestampUtc) { this.timestampUtc = timestampUtc; }
 
+    public String getFingerprint() { return fingerprint; }
+    public void setFingerprint(String fingerprint) { this.fingerprint = fingerprint; }
+
+    public Boolean getContentPartial() { return contentPartial; }
+    public void setContentPartial(Boolean contentPartial) { this.contentPartial = contentPartial; }
+
     public ImmutablePair<Boolean, String> nonAnnotationValidation() {
         if (StringUtils.isBlank(fileBase64) && StringUtils.isBlank(content)) {
             return new ImmutablePair<>(false, "content and content_base64 fields are blank");
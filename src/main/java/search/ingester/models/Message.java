@@ -23,6 +23,11 @@ public class Message {
     @JsonbProperty("resources")
     private List<Document> resources;
 
+    // optional, set by the publisher to something that only goes up for the document (e.g. the time it was last
+    // modified in epoch millis), so a write can't be overwritten by an older one that arrives after it
+    @JsonbProperty("version")
+    private Long version;
+
     public String getIndex() { return index; }
     public void setIndex(String index) { this.index = index; }
 
@@ -35,6 +40,9 @@ public class Message {
     public List<Document> getResources() { return resources; }
     public void setResources(List<Document> resources) { this.resources = resources; }
 
+    public Long getVersion() { return version; }
+    public void setVersion(Long version) { this.version = version; }
+
     public String getS3BucketName() { return s3BucketName; }
     public void setS3BucketName(String s3BucketName) { this.s3BucketName = s3BucketName; }
 
@@ -0,0 +1,104 @@
+package search.ingester;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+
+import search.ingester.models.Message;
+
+public class TestBatchCoalescer {
+
+    private final Jsonb jsonb = JsonbBuilder.create();
+
+    @Test
+    public void shouldOnlyKeepTheNewestMessageForADocument() {
+        List<SQSMessage> records = Arrays.asList(
+                record("1", null, "upsert", "live", "a"),
+                record("2", null, "upsert", "live", "b"),
+                record("3", null, "delete", "live", "a"),
+                record("4", null, "upsert", "live", "a"));
+
+        Map<String, String> superseded = BatchCoalescer.findSuperseded(records, deserialize(records));
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("1", "4");
+        expected.put("3", "4");
+        assertEquals(expected, superseded);
+    }
+
+    @Test
+    public void shouldTreatTheSameIdInAnotherIndexAsAnotherDocument() {
+        List<SQSMessage> records = Arrays.asList(
+                record("1", null, "upsert", "live", "a"),
+                record("2", null, "delete", "beta", "a"));
+
+        assertTrue(BatchCoalescer.findSuperseded(records, deserialize(records)).isEmpty());
+    }
+
+    @Test
+    public void shouldGoByWhenMessagesWereSentRatherThanTheirPlaceInTheBatch() {
+        List<SQSMessage> records = Arrays.asList(
+                record("1", "2000", "delete", "live", "a"),
+                record("2", "1000", "upsert", "live", "a"));
+
+        assertEquals(Collections.singletonMap("2", "1"), BatchCoalescer.findSuperseded(records, deserialize(records)));
+    }
+
+    @Test
+    public void shouldGoByVersionWhenBothMessagesHaveOne() {
+        List<SQSMessage> records = Arrays.asList(
+                record("1", "1000", "upsert", "live", "a"),
+                record("2", "2000", "upsert", "live", "a"));
+        Map<String, Message> messages = deserialize(records);
+        messages.get("1").setVersion(20L);
+        messages.get("2").setVersion(10L);
+
+        assertEquals(Collections.singletonMap("2", "1"), BatchCoalescer.findSuperseded(records, messages));
+    }
+
+    @Test
+    public void shouldLeaveMessagesThatCouldntBeDeserializedOrAreOnS3Alone() {
+        SQSMessage s3 = new SQSMessage();
+        s3.setMessageId("2");
+        s3.setBody("{\"S3BucketName\": \"bucket\", \"S3Key\": \"key\"}");
+        SQSMessage broken = new SQSMessage();
+        broken.setMessageId("3");
+        broken.setBody("not json");
+
+        List<SQSMessage> records = Arrays.asList(record("1", null, "upsert", "live", "a"), s3, broken,
+                record("4", null, "spike", "live", "a"));
+        Map<String, Message> messages = deserialize(Arrays.asList(records.get(0), s3, records.get(3)));
+
+        assertTrue(BatchCoalescer.findSuperseded(records, messages).isEmpty());
+    }
+
+    private Map<String, Message> deserialize(List<SQSMessage> records) {
+        Map<String, Message> messages = new HashMap<>();
+        for (SQSMessage record : records) {
+            messages.put(record.getMessageId(), jsonb.fromJson(record.getBody(), Message.class));
+        }
+        return messages;
+    }
+
+    private static SQSMessage record(String id, String sentTimestamp, String verb, String index, String docId) {
+        SQSMessage msg = new SQSMessage();
+        msg.setMessageId(id);
+        msg.setBody(String.format("{\"index\": \"%s\", \"verb\": \"%s\", \"document\": {\"id\": \"%s\"}}",
+                index, verb, docId));
+        if (sentTimestamp != null) {
+            msg.setAttributes(Collections.singletonMap("SentTimestamp", sentTimestamp));
+        }
+        return msg;
+    }
+}
@@ -0,0 +1,56 @@
+package search.ingester;
+
+import org.junit.jupiter.api.Test;
+
+import search.ingester.models.Document;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+public class TestDocumentTweaker {
+
+    @Test
+    public void shouldTruncateContentTheSameAsBefore() {
+        Random random = new Random(42);
+        char[] alphabet = { 'a', 'b', ' ', '\n', '\n', '\r', '\t', '\u0001' };
+
+        for (int n = 0; n < 2000; n++) {
+            StringBuilder content = new StringBuilder();
+            int length = random.nextInt(400);
+            for (int i = 0; i < length; i++) {
+                content.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+
+            Document doc = new Document();
+            doc.setContent(content.toString());
+            DocumentTweaker.setContentTruncatedField(doc);
+
+            assertEquals(previousContentTruncated(content.toString()), doc.getContentTruncated());
+        }
+    }
+
+    @Test
+    public void shouldNotCountNewlinesTowardsTheLimit() {
+        Document doc = new Document();
+        doc.setContent("\n  " + new String(new char[200]).replace('\0', 'x') + "\n\n  \n");
+        DocumentTweaker.setContentTruncatedField(doc);
+
+        assertEquals(200, doc.getContentTruncated().length());
+    }
+
+    /**
+     * How content_truncated used to be worked out
+     */
+    private static String previousContentTruncated(String c) {
+        c = c.replace("\n", "");
+        c = c.trim();
+
+        String truncated = c.substring(0, Math.min(c.length(), 200));
+
+        if (c.length() > truncated.length()) {
+            c = truncated + "...";
+        }
+        return c;
+    }
+}
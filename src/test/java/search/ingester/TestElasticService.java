@@ -0,0 +1,165 @@
+package search.ingester;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import search.ingester.models.Document;
+
+public class TestElasticService {
+
+    @Test
+    public void shouldAcceptCreatedAndUpdatedBulkIndexItems() {
+        assertNull(ElasticService.getBulkItemError(indexItem("live", true)));
+        assertNull(ElasticService.getBulkItemError(indexItem("live", false)));
+    }
+
+    @Test
+    public void shouldReportFailedBulkItems() {
+        BulkItemResponse.Failure failure = new BulkItemResponse.Failure("live", "_doc", "1",
+                new RuntimeException("mapper_parsing_exception"), RestStatus.BAD_REQUEST);
+        BulkItemResponse item = new BulkItemResponse(0, DocWriteRequest.OpType.INDEX, failure);
+
+        assertNotNull(ElasticService.getBulkItemError(item));
+    }
+
+    @Test
+    public void shouldOnlyIgnoreBulkDelete404sForNonLiveIndexes() {
+        assertNull(ElasticService.getBulkItemError(deleteItem("beta", false)));
+        assertNotNull(ElasticService.getBulkItemError(deleteItem("live", false)));
+        assertNull(ElasticService.getBulkItemError(deleteItem("live", true)));
+    }
+
+    @Test
+    public void shouldGroupBulkActionsByIndexKeepingTheirOrder() {
+        BulkRequest req = new BulkRequest();
+        req.add(new IndexRequest("live", "_doc", "1").source("{}", XContentType.JSON));
+        req.add(new IndexRequest("live-next", "_doc", "1").source("{}", XContentType.JSON));
+        req.add(new DeleteRequest("live", "_doc", "2"));
+        req.add(new DeleteRequest("live-next", "_doc", "2"));
+
+        List<String> owners = new ArrayList<>();
+        BulkRequest grouped = ElasticService.groupByIndex(req, Arrays.asList("a", "a", "b", "b"), owners);
+
+        List<String> order = new ArrayList<>();
+        for (DocWriteRequest<?> action : grouped.requests()) {
+            order.add(action.index() + "/" + action.id());
+        }
+        assertEquals(Arrays.asList("live/1", "live/2", "live-next/1", "live-next/2"), order);
+        assertEquals(Arrays.asList("a", "b", "a", "b"), owners);
+    }
+
+    @Test
+    public void shouldTreatDeletesInIndexesWrittenForLiveAsLive() {
+        assertNotNull(ElasticService.getBulkItemError(deleteItem("website-blue", false), "website-blue"::equals));
+    }
+
+    @Test
+    public void shouldTreatVersionConflictsAsNoOps() {
+        BulkItemResponse.Failure failure = new BulkItemResponse.Failure("live", "_doc", "1",
+                new RuntimeException("version_conflict_engine_exception"), RestStatus.CONFLICT);
+
+        assertNull(ElasticService.getBulkItemError(new BulkItemResponse(0, DocWriteRequest.OpType.INDEX, failure)));
+        assertTrue(ElasticService.isVersionConflict(
+                new ElasticsearchStatusException("version_conflict_engine_exception", RestStatus.CONFLICT)));
+        assertFalse(ElasticService.isVersionConflict(new ElasticsearchStatusException("mapper_parsing_exception",
+                RestStatus.BAD_REQUEST)));
+    }
+
+    @Test
+    public void shouldSerializeDocumentsTheSameAsJsonb() {
+        Jsonb jsonb = JsonbBuilder.create();
+        Document doc = new Document();
+        doc.setId("1");
+        doc.setSite("datahub");
+        doc.setTitle("A \"quoted\" title");
+        doc.setContent("Content with a tab\t, a newline\n, a control character \u0001 and some "
+                + "\u00e9\u00e8\u4e2d\ud83d\ude00");
+
+        assertEquals(jsonb.toJson(doc), ElasticService.serialize(jsonb, doc).utf8ToString());
+    }
+
+    @Test
+    public void shouldMatchFingerprintsToTheAliasesAskedForByPosition() {
+        // looked up by the "live" and "live-next" aliases, the items come back with the indexes they point to
+        MultiGetResponse resp = new MultiGetResponse(new MultiGetItemResponse[] {
+                getItem("website-blue", "1", "{\"fingerprint\":\"abc\"}"),
+                getItem("website-green", "1", null),
+                getItem("website-green", "2", "{\"title\":\"No fingerprint\"}"),
+                new MultiGetItemResponse(null, new MultiGetResponse.Failure("live", "_doc", "3",
+                        new RuntimeException("index_not_found_exception")))
+        });
+
+        assertEquals(Arrays.asList("abc", null, null, null), ElasticService.getFingerprints(resp));
+    }
+
+    @Test
+    public void shouldOnlyKeepChildFingerprintsThatEveryTargetAgreesOn() {
+        Map<String, String> live = new HashMap<>();
+        live.put("same", "abc");
+        live.put("changed", "abc");
+        live.put("only-live", "abc");
+        live.put("unfingerprinted", null);
+        Map<String, String> next = new HashMap<>();
+        next.put("same", "abc");
+        next.put("changed", "def");
+        next.put("only-next", "abc");
+        next.put("unfingerprinted", null);
+
+        Map<String, String> merged = ElasticService.mergeChildFingerprints(Arrays.asList(live, next));
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("same", "abc");
+        expected.put("changed", null);
+        expected.put("only-live", null);
+        expected.put("only-next", null);
+        expected.put("unfingerprinted", null);
+        assertEquals(expected, merged);
+        assertEquals(live, ElasticService.mergeChildFingerprints(Collections.singletonList(live)));
+    }
+
+    private static MultiGetItemResponse getItem(String index, String id, String source) {
+        GetResult result = new GetResult(index, "_doc", id, 1, source != null,
+                source == null ? null : new BytesArray(source), Collections.emptyMap());
+        return new MultiGetItemResponse(new GetResponse(result), null);
+    }
+
+    private static BulkItemResponse indexItem(String index, boolean created) {
+        IndexResponse resp = new IndexResponse(new ShardId(index, "uuid", 0), "_doc", "1", 1, 1, 1, created);
+        return new BulkItemResponse(0, DocWriteRequest.OpType.INDEX, resp);
+    }
+
+    private static BulkItemResponse deleteItem(String index, boolean found) {
+        DeleteResponse resp = new DeleteResponse(new ShardId(index, "uuid", 0), "_doc", "1", 1, 1, 1, found);
+        return new BulkItemResponse(0, DocWriteRequest.OpType.DELETE, resp);
+    }
+}
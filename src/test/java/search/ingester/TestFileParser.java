@@ -0,0 +1,121 @@
+package search.ingester;
+
+import org.junit.jupiter.api.Test;
+
+import search.ingester.models.Document;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.xml.sax.ContentHandler;
+
+public class TestFileParser {
+
+    @Test
+    public void shouldExtractContentFromBase64File() throws Exception {
+        Document doc = new Document();
+        doc.setTitle("A file");
+        doc.setFileBase64(Base64.getEncoder().encodeToString(
+                "Some   text\n\nover a few\tlines\n".getBytes(StandardCharsets.UTF_8)));
+
+        new FileParser().parseFile(doc);
+
+        assertEquals("Some text over a few lines", doc.getContent());
+        assertNull(doc.getFileBase64());
+        assertNull(doc.getContentPartial());
+    }
+
+    @Test
+    public void shouldExtractContentFromTheWarmUpPdf() throws Exception {
+        // warming up carries on regardless if this fails, so make sure it actually parses
+        Document doc = new Document();
+        doc.setTitle("Warm up");
+        doc.setFileExtension("pdf");
+        doc.setFileBase64(Base64.getEncoder().encodeToString(
+                Components.WARM_UP_PDF.getBytes(StandardCharsets.US_ASCII)));
+
+        new FileParser().parseFile(doc);
+
+        assertEquals("Warm up", doc.getContent());
+        assertNull(doc.getContentPartial());
+    }
+
+    @Test
+    public void shouldKeepTheContentUpToTheCharacterLimit() throws Exception {
+        Document doc = textFile("0123456789 0123456789 0123456789");
+
+        new FileParser(null, new ParseLimits(15, -1, -1)).parseFile(doc);
+
+        assertEquals("0123456789 0123", doc.getContent());
+        assertTrue(doc.getContentPartial());
+    }
+
+    @Test
+    public void shouldOnlyParseTheStartOfAFileOverTheInputLimit() throws Exception {
+        Document doc = textFile("0123456789 0123456789 0123456789");
+
+        new FileParser(null, new ParseLimits(-1, 10, -1)).parseFile(doc);
+
+        assertEquals("0123456789", doc.getContent());
+        assertTrue(doc.getContentPartial());
+    }
+
+    @Test
+    public void shouldFallBackOnTheTitleWhenTheDeadlineIsReached() throws Exception {
+        Document doc = textFile("0123456789 0123456789 0123456789");
+
+        new FileParser(null, new ParseLimits(-1, -1, 0)).parseFile(doc);
+
+        assertEquals("A file", doc.getContent());
+        assertTrue(doc.getContentPartial());
+        assertNull(doc.getFileBase64());
+    }
+
+    @Test
+    public void shouldGiveUpWaitingForParsePermitsHeldByStuckParses() throws Exception {
+        CountDownLatch stuck = new CountDownLatch(1);
+        ParserRegistry parsers = new ParserRegistry(ParserRegistry.ALL_FORMATS, false) {
+            @Override
+            public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) {
+                // like a parser that ignores being interrupted and doesn't produce any SAX events
+                while (stuck.getCount() > 0) {
+                    try {
+                        stuck.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        };
+        FileParser parser = new FileParser(null, new ParseLimits(-1, -1, 100), parsers, 1);
+
+        Document first = textFile("0123456789");
+        parser.parseFile(first);
+        assertTrue(first.getContentPartial());
+
+        // the first parse is still running and holding the only permit, so the second gives up waiting for it
+        Document second = textFile("0123456789");
+        parser.parseFile(second);
+        assertTrue(second.getContentPartial());
+        assertEquals("A file", second.getContent());
+
+        // once it stops the permit is free again, and the next parse's deadline starts once it has it
+        stuck.countDown();
+        Document third = textFile("0123456789");
+        parser.parseFile(third);
+        assertNull(third.getContentPartial());
+    }
+
+    private static Document textFile(String text) {
+        Document doc = new Document();
+        doc.setTitle("A file");
+        doc.setFileBase64(Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8)));
+        return doc;
+    }
+}
@@ -0,0 +1,100 @@
+package search.ingester;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestIndexRouter {
+
+    @Test
+    public void shouldParseRoutes() {
+        Map<String, List<String>> routes = IndexRouter.parseRoutes(" live = live, live-next ;beta=beta-blue;");
+
+        assertEquals(Arrays.asList("live", "live-next"), routes.get("live"));
+        assertEquals(Collections.singletonList("beta-blue"), routes.get("beta"));
+        assertTrue(IndexRouter.parseRoutes(null).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> IndexRouter.parseRoutes("live"));
+    }
+
+    @Test
+    public void shouldLeaveIndexesWithoutARouteAlone() {
+        IndexRouter router = new IndexRouter(IndexRouter.parseRoutes("live=live,live-next"), 60000, name -> {
+            throw new AssertionError("shouldn't be looked up");
+        });
+
+        assertEquals(Collections.singletonList("beta"), router.route("beta"));
+    }
+
+    @Test
+    public void shouldOnlyWriteOnceToTargetsThatResolveToTheSameIndex() {
+        Map<String, Map<String, Boolean>> aliases = new HashMap<>();
+        aliases.put("live-write", Collections.singletonMap("live-blue", false));
+        aliases.put("live-next", Collections.singletonMap("live-blue", true));
+        IndexRouter router = new IndexRouter(IndexRouter.parseRoutes("live=live-write,live-next,live-green"), 60000,
+                name -> aliases.getOrDefault(name, Collections.emptyMap()));
+
+        assertEquals(Arrays.asList("live-blue", "live-green"), router.route("live"));
+    }
+
+    @Test
+    public void shouldPickTheWriteIndexOfAnAliasOnSeveralIndexes() {
+        Map<String, Boolean> indexes = new HashMap<>();
+        indexes.put("website-1", false);
+        indexes.put("website-2", true);
+        IndexRouter router = new IndexRouter(IndexRouter.parseRoutes("website=website-write"), 60000,
+                name -> indexes);
+
+        assertEquals(Collections.singletonList("website-2"), router.route("website"));
+    }
+
+    @Test
+    public void shouldCacheAliasesForTheTtl() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        IndexRouter.AliasLookup lookup = name -> {
+            lookups.incrementAndGet();
+            return Collections.singletonMap("website-2", true);
+        };
+
+        IndexRouter cached = new IndexRouter(IndexRouter.parseRoutes("website=website-write"), 60000, lookup);
+        cached.route("website");
+        cached.route("website");
+        assertEquals(1, lookups.get());
+
+        IndexRouter expiring = new IndexRouter(IndexRouter.parseRoutes("website=website-write"), 1, lookup);
+        expiring.route("website");
+        Thread.sleep(5);
+        expiring.route("website");
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    public void shouldWriteToTheTargetAsItIsIfItCantBeResolved() {
+        IndexRouter router = new IndexRouter(IndexRouter.parseRoutes("website=website-write"), 60000, name -> {
+            throw new IOException("connection refused");
+        });
+
+        assertEquals(Collections.singletonList("website-write"), router.route("website"));
+    }
+
+    @Test
+    public void shouldTreatIndexesWrittenToForLiveAsLive() {
+        IndexRouter router = new IndexRouter(IndexRouter.parseRoutes("live=website-blue"), 0, null);
+
+        assertFalse(router.isLive("website-blue"));
+        router.route("live");
+        assertTrue(router.isLive("website-blue"));
+        assertTrue(router.isLive("live"));
+        assertFalse(router.isLive("beta"));
+    }
+}
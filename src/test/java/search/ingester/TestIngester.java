@@ -2,11 +2,25 @@
 package search.ingester;
 
 import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
 
  
 public class TestIngester {
@@ -31,5 +45,93 @@ public class TestIngester {
     @Test
     public void shouldDispatchVerbToTheRightHandler() {
         assertTrue(3 == 1 + 1 + 1, "Can add up.");
-    }    
+    }
+
+    @Test
+    public void shouldOnlyReportTheMessagesThatFailed() throws Exception {
+        Processor processor = mock(Processor.class);
+        doThrow(new RuntimeException("boom")).when(processor).process(argThat(m -> "bad".equals(m.getIndex())));
+
+        List<SQSMessage> records = Arrays.asList(
+                sqsMessage("1", "{\"index\": \"good\", \"verb\": \"upsert\"}"),
+                sqsMessage("2", "{\"index\": \"bad\", \"verb\": \"upsert\"}"),
+                sqsMessage("3", "not json"),
+                sqsMessage("4", "{\"index\": \"good\", \"verb\": \"delete\"}"));
+
+        Set<String> failed = new Ingester(new Components(mock(Env.class))).handleRecords(records, processor,
+                mock(ElasticService.class), Long.MAX_VALUE);
+
+        assertEquals(Arrays.asList("2", "3"), new ArrayList<>(failed));
+        verify(processor, times(3)).process(any());
+    }
+
+    @Test
+    public void shouldReportMessagesWithFailedDeferredWrites() throws Exception {
+        ElasticService elasticService = mock(ElasticService.class);
+        when(elasticService.endBatch()).thenReturn(Collections.singleton("1"));
+
+        List<SQSMessage> records = Arrays.asList(
+                sqsMessage("1", "{\"index\": \"good\", \"verb\": \"upsert\"}"),
+                sqsMessage("2", "{\"index\": \"good\", \"verb\": \"upsert\"}"));
+
+        Set<String> failed = new Ingester(new Components(mock(Env.class))).handleRecords(records,
+                mock(Processor.class), elasticService, Long.MAX_VALUE);
+
+        assertEquals(Collections.singletonList("1"), new ArrayList<>(failed));
+        verify(elasticService).beginBatch(Long.MAX_VALUE);
+        verify(elasticService).setBatchOwner("2");
+    }
+
+    @Test
+    public void shouldOnlyProcessTheNewestMessageForADocumentWhenCoalescing() throws Exception {
+        Env env = new Env() {
+            @Override
+            public boolean BATCH_COALESCING_ENABLED() { return true; }
+        };
+        Processor processor = mock(Processor.class);
+
+        List<SQSMessage> records = Arrays.asList(
+                sqsMessage("1", "{\"index\": \"live\", \"verb\": \"upsert\", \"document\": {\"id\": \"a\"}}"),
+                sqsMessage("2", "{\"index\": \"live\", \"verb\": \"delete\", \"document\": {\"id\": \"a\"}}"),
+                sqsMessage("3", "{\"index\": \"live\", \"verb\": \"upsert\", \"document\": {\"id\": \"b\"}}"));
+
+        Set<String> failed = new Ingester(new Components(env)).handleRecords(records, processor,
+                mock(ElasticService.class), Long.MAX_VALUE);
+
+        assertTrue(failed.isEmpty());
+        verify(processor).process(argThat(m -> "a".equals(m.getDocument().getId()) && "delete".equals(m.getVerb())));
+        verify(processor).process(argThat(m -> "b".equals(m.getDocument().getId())));
+        verify(processor, times(2)).process(any());
+    }
+
+    @Test
+    public void shouldNotFailMessagesWhoseS3ObjectCouldntBeDeleted() throws Exception {
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            S3Object object = new S3Object();
+            object.setObjectContent(new ByteArrayInputStream(
+                    "{\"index\": \"good\", \"verb\": \"upsert\"}".getBytes(StandardCharsets.UTF_8)));
+            return object;
+        });
+        doThrow(new AmazonS3Exception("Access Denied")).when(s3).deleteObject(any(DeleteObjectRequest.class));
+
+        List<SQSMessage> records = Arrays.asList(
+                sqsMessage("1", "{\"S3BucketName\": \"bucket\", \"S3Key\": \"one\"}"),
+                sqsMessage("2", "{\"S3BucketName\": \"bucket\", \"S3Key\": \"two\"}"));
+
+        Processor processor = mock(Processor.class);
+        Set<String> failed = new Ingester(new Components(mock(Env.class), s3)).handleRecords(records, processor,
+                mock(ElasticService.class), Long.MAX_VALUE);
+
+        assertTrue(failed.isEmpty());
+        verify(processor, times(2)).process(any());
+        verify(s3, times(2)).deleteObject(any(DeleteObjectRequest.class));
+    }
+
+    private static SQSMessage sqsMessage(String id, String body) {
+        SQSMessage msg = new SQSMessage();
+        msg.setMessageId(id);
+        msg.setBody(body);
+        return msg;
+    }
 }
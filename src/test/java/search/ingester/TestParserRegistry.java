@@ -0,0 +1,90 @@
+package search.ingester;
+
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestParserRegistry {
+
+    @Test
+    public void shouldDetectAndParseADocxWithOrWithoutAnExtensionHint() throws Exception {
+        ParserRegistry registry = new ParserRegistry(ParserRegistry.ALL_FORMATS, false);
+        byte[] docx = docx("Some text in a Word document");
+
+        for (String name : Arrays.asList(null, "file.docx")) {
+            Metadata metadata = new Metadata();
+            if (name != null) {
+                metadata.set(Metadata.RESOURCE_NAME_KEY, name);
+            }
+            BodyContentHandler handler = new BodyContentHandler();
+
+            registry.parse(new ByteArrayInputStream(docx), handler, metadata, new ParseContext());
+
+            assertEquals("application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+                    metadata.get(Metadata.CONTENT_TYPE));
+            assertEquals("Some text in a Word document", handler.toString().trim());
+        }
+    }
+
+    @Test
+    public void shouldFailFormatsThatArentConfiguredWithoutTheFallback() throws Exception {
+        ParserRegistry registry = new ParserRegistry(Collections.singletonList("pdf"), false);
+
+        assertThrows(TikaException.class, () -> registry.parse(new ByteArrayInputStream(docx("Some text")),
+                new BodyContentHandler(), new Metadata(), new ParseContext()));
+    }
+
+    @Test
+    public void shouldNotTreatSubtypesOfPlainTextAsPlainText() throws Exception {
+        ParserRegistry registry = new ParserRegistry(ParserRegistry.ALL_FORMATS, false);
+        byte[] xml = "<?xml version=\"1.0\"?><root>Some text</root>".getBytes(StandardCharsets.UTF_8);
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, "file.xml");
+
+        assertThrows(TikaException.class, () -> registry.parse(new ByteArrayInputStream(xml),
+                new BodyContentHandler(), metadata, new ParseContext()));
+        assertEquals("application/xml", metadata.get(Metadata.CONTENT_TYPE));
+    }
+
+    @Test
+    public void shouldParseLegacyWordDocumentsWithTheFallback() throws Exception {
+        ParserRegistry registry = new ParserRegistry(ParserRegistry.ALL_FORMATS, true);
+        Metadata metadata = new Metadata();
+        BodyContentHandler handler = new BodyContentHandler();
+
+        try (InputStream doc = getClass().getResourceAsStream("/legacy.doc")) {
+            registry.parse(doc, handler, metadata, new ParseContext());
+        }
+
+        assertEquals("application/msword", metadata.get(Metadata.CONTENT_TYPE));
+        assertEquals("Some text in a legacy Word document", handler.toString().trim());
+    }
+
+    @Test
+    public void shouldRejectUnknownFormats() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ParserRegistry(Collections.singletonList("doc"), true));
+    }
+
+    private static byte[] docx(String text) throws Exception {
+        try (XWPFDocument document = new XWPFDocument()) {
+            document.createParagraph().createRun().setText(text);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.write(out);
+            return out.toByteArray();
+        }
+    }
+}
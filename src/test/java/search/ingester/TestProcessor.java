@@ -0,0 +1,201 @@
+package search.ingester;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import search.ingester.models.Document;
+import search.ingester.models.Message;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import javax.validation.Validation;
+
+public class TestProcessor {
+
+    private ExecutorService executor;
+    private ElasticService elasticService;
+    private Processor processor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        elasticService = mock(ElasticService.class);
+        processor = new Processor(elasticService, new FileParser(),
+                Validation.buildDefaultValidatorFactory().getValidator(), executor, true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldKeepResourceOrderWhenPreparingInParallel() throws Exception {
+        Message m = upsertWithResources(20);
+
+        processor.process(m);
+
+        ArgumentCaptor<Document> captor = ArgumentCaptor.forClass(Document.class);
+        verify(elasticService, times(21)).putDocument(eq("test"), captor.capture(), isNull());
+
+        List<String> titles = captor.getAllValues().stream().map(Document::getTitle).collect(Collectors.toList());
+        assertEquals("Parent", titles.get(0));
+        for (int i = 0; i < 20; i++) {
+            assertEquals("Resource " + i, titles.get(i + 1));
+        }
+    }
+
+    @Test
+    public void shouldFailTheMessageWhenAnyResourceFails() throws Exception {
+        Message m = upsertWithResources(20);
+        m.getResources().get(7).setUrl(null);
+
+        assertThrows(RuntimeException.class, () -> processor.process(m));
+
+        // nothing should be written if the resources couldn't all be prepared
+        verify(elasticService, never()).putDocument(any(), any(), any());
+    }
+
+    @Test
+    public void shouldOnlyWriteChangedResourcesAndDeleteRemovedOnes() throws Exception {
+        // index the first time round to find out the stable IDs and fingerprints
+        processor.process(upsertWithResources(3));
+        ArgumentCaptor<Document> captor = ArgumentCaptor.forClass(Document.class);
+        verify(elasticService, times(4)).putDocument(eq("test"), captor.capture(), isNull());
+
+        Map<String, String> existing = new HashMap<>();
+        for (Document doc : captor.getAllValues().subList(1, 4)) {
+            existing.put(doc.getId(), doc.getFingerprint());
+        }
+        existing.put("an-old-resource", null);
+
+        reset(elasticService);
+        when(elasticService.getChildFingerprints("test", "3f2a4c4e-2b8d-4b1e-9a56-6a1d8f0f3c11")).thenReturn(existing);
+
+        Message m = upsertWithResources(3);
+        m.getResources().get(1).setContent("Some changed content");
+        processor.process(m);
+
+        captor = ArgumentCaptor.forClass(Document.class);
+        verify(elasticService, times(2)).putDocument(eq("test"), captor.capture(), isNull());
+        assertEquals("Resource 1", captor.getAllValues().get(1).getTitle());
+        verify(elasticService).deleteDocument("test", "an-old-resource", null);
+        verify(elasticService, never()).deleteByParentId(any(), any());
+    }
+
+    @Test
+    public void shouldFingerprintTheMainDocumentTheSameWhateverTheTimestamp() throws Exception {
+        processor.process(upsertWithResources(0));
+        Thread.sleep(5);
+        processor.process(upsertWithResources(0));
+
+        ArgumentCaptor<Document> captor = ArgumentCaptor.forClass(Document.class);
+        verify(elasticService, times(2)).putDocument(eq("test"), captor.capture(), isNull());
+
+        Document first = captor.getAllValues().get(0);
+        Document second = captor.getAllValues().get(1);
+        assertNotNull(first.getFingerprint());
+        assertEquals(first.getFingerprint(), second.getFingerprint());
+
+        Message changed = upsertWithResources(0);
+        changed.getDocument().setTitle("Changed");
+        processor.process(changed);
+        verify(elasticService, times(3)).putDocument(eq("test"), captor.capture(), isNull());
+        assertNotEquals(first.getFingerprint(), captor.getValue().getFingerprint());
+    }
+
+    @Test
+    public void shouldNotFingerprintDocumentsWithPartialContent() throws Exception {
+        Processor limited = new Processor(elasticService, new FileParser(null, new ParseLimits(10, -1, -1)),
+                Validation.buildDefaultValidatorFactory().getValidator(), null, true);
+        Message m = upsertWithResources(2);
+        m.getResources().get(1).setFileBase64(Base64.getEncoder().encodeToString(
+                "Some text that is longer than the limit".getBytes(StandardCharsets.UTF_8)));
+        m.getResources().get(1).setFileExtension("txt");
+
+        limited.process(m);
+
+        ArgumentCaptor<Document> captor = ArgumentCaptor.forClass(Document.class);
+        verify(elasticService, times(3)).putDocument(eq("test"), captor.capture(), isNull());
+        assertNotNull(captor.getAllValues().get(1).getFingerprint());
+        assertEquals(Boolean.TRUE, captor.getAllValues().get(2).getContentPartial());
+        // so that it's parsed again next time rather than skipped as unchanged
+        assertNull(captor.getAllValues().get(2).getFingerprint());
+    }
+
+    @Test
+    public void shouldWriteEveryResourceOfAVersionedMessageWithItsVersion() throws Exception {
+        Processor unsynced = new Processor(elasticService, new FileParser(),
+                Validation.buildDefaultValidatorFactory().getValidator(), null, false);
+
+        processor.process(upsertWithResources(2));
+        ArgumentCaptor<Document> captor = ArgumentCaptor.forClass(Document.class);
+        verify(elasticService, times(3)).putDocument(eq("test"), captor.capture(), isNull());
+
+        Map<String, String> existing = new HashMap<>();
+        for (Document doc : captor.getAllValues().subList(1, 3)) {
+            existing.put(doc.getId(), doc.getFingerprint());
+        }
+
+        reset(elasticService);
+        when(elasticService.getChildFingerprints("test", "3f2a4c4e-2b8d-4b1e-9a56-6a1d8f0f3c11")).thenReturn(existing);
+
+        // nothing has changed, but every resource still has to get the new version
+        Message m = upsertWithResources(2);
+        m.setVersion(42L);
+        unsynced.process(m);
+        verify(elasticService, times(3)).putDocument(eq("test"), any(), eq(42L));
+        verify(elasticService, never()).deleteByParentId(any(), any());
+
+        m.setVerb("delete");
+        m.setVersion(43L);
+        unsynced.process(m);
+        for (String id : existing.keySet()) {
+            verify(elasticService).deleteDocument("test", id, 43L);
+        }
+        verify(elasticService).deleteDocument("test", "3f2a4c4e-2b8d-4b1e-9a56-6a1d8f0f3c11", 43L);
+        verify(elasticService, never()).deleteByParentId(any(), any());
+    }
+
+    private static Message upsertWithResources(int count) {
+        Document parent = new Document();
+        parent.setId("3f2a4c4e-2b8d-4b1e-9a56-6a1d8f0f3c11");
+        parent.setSite("datahub");
+        parent.setTitle("Parent");
+        parent.setContent("Some parent content");
+        parent.setUrl("https://example.com/parent");
+
+        List<Document> resources = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Document resource = new Document();
+            resource.setTitle("Resource " + i);
+            resource.setContent("Some resource content " + i);
+            resource.setUrl("https://example.com/resource/" + i);
+            resources.add(resource);
+        }
+
+        Message m = new Message();
+        m.setIndex("test");
+        m.setVerb("upsert");
+        m.setDocument(parent);
+        m.setResources(resources);
+        return m;
+    }
+}
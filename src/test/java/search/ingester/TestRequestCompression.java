@@ -0,0 +1,87 @@
+package search.ingester;
+
+import org.apache.commons.io.IOUtils;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+public class TestRequestCompression {
+
+    @Test
+    public void shouldGzipTheBulkBody() throws Exception {
+        RequestCompression compression = new RequestCompression(1024);
+
+        BulkRequest bulk = new BulkRequest();
+        bulk.add(new IndexRequest("live-datahub", "_doc", "1").source("{\"title\":\"A title\"}", XContentType.JSON));
+        bulk.add(new DeleteRequest("live-datahub", "_doc", "2"));
+
+        Request request = compression.bulk(bulk);
+
+        String body = IOUtils.toString(new GZIPInputStream(request.getEntity().getContent()), StandardCharsets.UTF_8);
+        String expected = "{\"index\":{\"_index\":\"live-datahub\",\"_type\":\"_doc\",\"_id\":\"1\"}}\n"
+                + "{\"title\":\"A title\"}\n"
+                + "{\"delete\":{\"_index\":\"live-datahub\",\"_type\":\"_doc\",\"_id\":\"2\"}}\n";
+        assertEquals(expected, body);
+        assertEquals("/_bulk", request.getEndpoint());
+        assertEquals("gzip", request.getOptions().getHeaders().get(0).getValue());
+
+        assertEquals(1, compression.getRequests());
+        assertEquals(expected.length(), compression.getBytesBefore());
+        assertEquals(request.getEntity().getContentLength(), compression.getBytesAfter());
+    }
+
+    @Test
+    public void shouldKeepExternalVersions() throws Exception {
+        RequestCompression compression = new RequestCompression(1024);
+
+        BulkRequest bulk = new BulkRequest();
+        bulk.add(new DeleteRequest("live-datahub", "_doc", "2").version(42).versionType(VersionType.EXTERNAL_GTE));
+        IndexRequest index = new IndexRequest("live-datahub", "_doc", "1").source("{}", XContentType.JSON)
+                .version(42).versionType(VersionType.EXTERNAL_GTE);
+
+        String body = IOUtils.toString(new GZIPInputStream(compression.bulk(bulk).getEntity().getContent()),
+                StandardCharsets.UTF_8);
+        assertEquals("{\"delete\":{\"_index\":\"live-datahub\",\"_type\":\"_doc\",\"_id\":\"2\"," +
+                "\"version\":42,\"version_type\":\"external_gte\"}}\n", body);
+
+        Request request = compression.index(index);
+        assertEquals("42", request.getParameters().get("version"));
+        assertEquals("external_gte", request.getParameters().get("version_type"));
+    }
+
+    @Test
+    public void shouldLeaveTheTypeOutOfUntypedRequests() throws Exception {
+        RequestCompression compression = new RequestCompression(1024);
+
+        BulkRequest bulk = new BulkRequest();
+        bulk.add(new IndexRequest("live-datahub").id("1").source("{}", XContentType.JSON));
+        bulk.add(new DeleteRequest("live-datahub").id("2"));
+
+        String body = IOUtils.toString(new GZIPInputStream(compression.bulk(bulk).getEntity().getContent()),
+                StandardCharsets.UTF_8);
+        assertEquals("{\"index\":{\"_index\":\"live-datahub\",\"_id\":\"1\"}}\n{}\n"
+                + "{\"delete\":{\"_index\":\"live-datahub\",\"_id\":\"2\"}}\n", body);
+
+        Request request = compression.index(new IndexRequest("live-datahub").id("1").source("{}", XContentType.JSON));
+        assertEquals("/live-datahub/_doc/1", request.getEndpoint());
+    }
+
+    @Test
+    public void shouldOnlyCompressBodiesOverTheMinimum() {
+        RequestCompression compression = new RequestCompression(1024);
+
+        assertFalse(compression.shouldCompress(1023));
+        assertTrue(compression.shouldCompress(1024));
+    }
+}
@@ -0,0 +1,58 @@
+package search.ingester;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.SocketTimeoutException;
+
+public class TestRetryPolicy {
+
+    @Test
+    public void shouldBackOffWithinTheCapUntilOutOfAttempts() {
+        RetryPolicy policy = new RetryPolicy(4, 100, 250);
+
+        for (int i = 0; i < 100; i++) {
+            long first = policy.getDelay(1, Long.MAX_VALUE);
+            assertTrue(first >= 0 && first <= 100, "first delay within base");
+            long third = policy.getDelay(3, Long.MAX_VALUE);
+            assertTrue(third >= 0 && third <= 250, "third delay within max");
+        }
+        assertEquals(-1, policy.getDelay(4, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldGiveUpRatherThanRunPastTheDeadline() {
+        RetryPolicy policy = new RetryPolicy(10, 1000, 1000);
+
+        assertEquals(-1, policy.getDelay(1, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void shouldOnlyRetryPushBackAndNetworkFailures() {
+        assertTrue(RetryPolicy.isRetryable(429));
+        assertTrue(RetryPolicy.isRetryable(503));
+        assertFalse(RetryPolicy.isRetryable(400));
+        assertFalse(RetryPolicy.isRetryable(409));
+        assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException()));
+        assertFalse(RetryPolicy.isRetryable(new IllegalArgumentException()));
+    }
+
+    @Test
+    public void shouldOpenTheCircuitBreakerAfterFailuresInARow() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 60 * 1000);
+
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        assertEquals(0, breaker.getMillisUntilClosed());
+
+        breaker.recordFailure();
+        assertTrue(breaker.getMillisUntilClosed() > 0);
+
+        breaker.recordSuccess();
+        assertEquals(0, breaker.getMillisUntilClosed());
+    }
+}
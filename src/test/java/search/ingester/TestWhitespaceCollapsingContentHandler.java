@@ -0,0 +1,70 @@
+package search.ingester;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+public class TestWhitespaceCollapsingContentHandler {
+
+    private static final String[] EXAMPLES = {
+            "",
+            "   ",
+            "word",
+            "  Some   text\n\nover a few\tlines\r\n",
+            "\u000B\fvertical tab and form feed\f",
+            // trim takes off control characters that aren't whitespace to a regex
+            "\u0001 leading and trailing control characters \u0002",
+            // and a regex doesn't collapse whitespace that isn't ASCII
+            "non\u00A0breaking \u2003 em space",
+    };
+
+    @Test
+    public void shouldMatchTheRegexForExamples() {
+        for (String example : EXAMPLES) {
+            assertEquals(expected(example), collapse(example, new Random(0)), example);
+        }
+    }
+
+    @Test
+    public void shouldMatchTheRegexForRandomTextSplitAnywhere() {
+        Random random = new Random(42);
+        char[] alphabet = { 'a', 'b', ' ', ' ', '\t', '\n', '\r', '\u000B', '\f', '\u0001', '\u00A0', '\u00E9' };
+
+        for (int n = 0; n < 1000; n++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(100);
+            for (int i = 0; i < length; i++) {
+                text.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+
+            assertEquals(expected(text.toString()), collapse(text.toString(), random), text.toString());
+        }
+    }
+
+    private static String expected(String text) {
+        return text.replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * Writes the text in randomly sized chunks, some as characters and some as ignorable whitespace
+     */
+    private static String collapse(String text, Random random) {
+        WhitespaceCollapsingContentHandler handler = new WhitespaceCollapsingContentHandler();
+        char[] chars = text.toCharArray();
+
+        int start = 0;
+        while (start < chars.length) {
+            int length = 1 + random.nextInt(chars.length - start);
+            if (random.nextBoolean()) {
+                handler.characters(chars, start, length);
+            } else {
+                handler.ignorableWhitespace(chars, start, length);
+            }
+            start += length;
+        }
+
+        return handler.toString();
+    }
+}
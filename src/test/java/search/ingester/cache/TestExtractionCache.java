@@ -0,0 +1,80 @@
+package search.ingester.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import search.ingester.FileParser;
+import search.ingester.models.Document;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+
+public class TestExtractionCache {
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedFromMemory() {
+        ExtractionResult result = new ExtractionResult("some content", "a title");
+        MemoryExtractionCache cache = new MemoryExtractionCache(result.estimatedBytes() * 2);
+
+        cache.put("a", result);
+        cache.put("b", result);
+        cache.get("a");
+        cache.put("c", result);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void shouldRoundTripThroughDisk(@TempDir Path dir) throws Exception {
+        DiskExtractionCache cache = new DiskExtractionCache(dir, 1024 * 1024);
+        cache.put("a", new ExtractionResult("some content é", null));
+
+        // a new cache over the same directory, as if in a new execution environment
+        ExtractionResult result = new DiskExtractionCache(dir, 1024 * 1024).get("a");
+
+        assertEquals("some content é", result.getContent());
+        assertNull(result.getTitle());
+    }
+
+    @Test
+    public void shouldOnlyAcceptDiskCacheDirectoriesUnderTmp() {
+        assertEquals(Paths.get("/tmp/extraction-cache"), DiskExtractionCache.checkDir("/tmp/extraction-cache/"));
+        assertThrows(IllegalArgumentException.class, () -> DiskExtractionCache.checkDir("/var/task/cache"));
+        assertThrows(IllegalArgumentException.class, () -> DiskExtractionCache.checkDir("/tmp/../var/task"));
+        assertThrows(IllegalArgumentException.class, () -> DiskExtractionCache.checkDir("tmp/extraction-cache"));
+        assertThrows(IllegalArgumentException.class, () -> DiskExtractionCache.checkDir("/tmp"));
+    }
+
+    @Test
+    public void shouldSkipParsingFilesThatHaveBeenSeenBefore() throws Exception {
+        MemoryExtractionCache memory = new MemoryExtractionCache(1024 * 1024);
+        FileParser parser = new FileParser(new TieredExtractionCache(Arrays.asList(memory)));
+
+        String file = Base64.getEncoder().encodeToString("Some text".getBytes(StandardCharsets.UTF_8));
+
+        Document first = new Document();
+        first.setFileBase64(file);
+        parser.parseFile(first);
+
+        Document second = new Document();
+        second.setFileBase64(file);
+        parser.parseFile(second);
+
+        assertEquals("Some text", second.getContent());
+        assertNull(second.getFileBase64());
+        assertEquals(1, parser.getCache().getHits());
+        assertEquals(1, parser.getCache().getMisses());
+    }
+}
@@ -0,0 +1,84 @@
+package search.ingester.metrics;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+public class TestMetrics {
+
+    @BeforeEach
+    @AfterEach
+    public void reset() {
+        Metrics.reset();
+    }
+
+    @Test
+    public void shouldPublishStagesAndCountersAsEmbeddedMetricFormat() {
+        Metrics.recordTime(Stage.TIKA_PARSE, System.nanoTime() - 5_000_000);
+        Metrics.recordTime(Stage.TIKA_PARSE, System.nanoTime() - 5_000_000);
+        Metrics.countBytes(Stage.TIKA_PARSE, 1024);
+        Metrics.countDocument("upsert", "datahub");
+
+        List<String> lines = Metrics.drain("Test", 1234L);
+        assertEquals(2, lines.size());
+
+        JsonObject stage = Json.createReader(new StringReader(lines.get(0))).readObject();
+        assertEquals("TikaParse", stage.getString("Stage"));
+        assertEquals(1024, stage.getInt("Bytes"));
+        assertEquals(2, stage.getJsonArray("Duration").size());
+        JsonObject aws = stage.getJsonObject("_aws");
+        assertEquals(1234L, aws.getJsonNumber("Timestamp").longValue());
+        assertEquals("Test", aws.getJsonArray("CloudWatchMetrics").getJsonObject(0).getString("Namespace"));
+
+        JsonObject documents = Json.createReader(new StringReader(lines.get(1))).readObject();
+        assertEquals("upsert", documents.getString("Verb"));
+        assertEquals("datahub", documents.getString("Site"));
+        assertEquals(1, documents.getInt("Documents"));
+
+        // publishing clears everything
+        assertTrue(Metrics.drain("Test", 1234L).isEmpty());
+    }
+
+    @Test
+    public void shouldSpreadDurationsOverLinesOfAtMostAHundredValues() {
+        for (int i = 0; i < 250; i++) {
+            Metrics.recordTime(Stage.ES_INDEX, System.nanoTime() - 1_000_000);
+        }
+        Metrics.countBytes(Stage.ES_INDEX, 10);
+
+        List<String> lines = Metrics.drain("Test", 1234L);
+        assertEquals(3, lines.size());
+
+        int values = 0;
+        int bytesLines = 0;
+        for (String line : lines) {
+            JsonObject stage = Json.createReader(new StringReader(line)).readObject();
+            assertTrue(stage.getJsonArray("Duration").size() <= Metrics.MAX_VALUES_PER_LINE);
+            values += stage.getJsonArray("Duration").size();
+            bytesLines += stage.containsKey("Bytes") ? 1 : 0;
+        }
+        assertEquals(250, values);
+        assertEquals(1, bytesLines);
+    }
+
+    @Test
+    public void shouldBucketValuesToWithinAQuarter() {
+        Histogram histogram = new Histogram();
+        histogram.record(100);
+        histogram.record(101);
+        histogram.record(10000);
+
+        assertEquals(2, histogram.getBuckets().size());
+        double bucket = histogram.getBuckets().keySet().iterator().next();
+        assertTrue(bucket > 80 && bucket < 125, "bucket value near the recorded ones");
+        assertEquals(3, histogram.getCount());
+    }
+}
@@ -0,0 +1,299 @@
+package search.ingester.worker;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+import search.ingester.Components;
+import search.ingester.Env;
+import search.ingester.Ingester;
+import search.ingester.LocalContext;
+
+/**
+ * Polls an SQS queue itself rather than being invoked by Lambda, for running the ingester somewhere long lived (e.g.
+ * a container working through a bulk reindex). A number of receive loops each long poll the queue and hand every
+ * batch they receive to their own Ingester, just as Lambda would, so everything the handler does (bulk and async
+ * writes, coalescing, partial batch failures) works the same. While a batch is being handled its messages are kept
+ * invisible, however long the Tika parses take, and afterwards the ones that were handled are deleted in one request.
+ * Failed messages are left to become visible again, to be redelivered (or dead lettered) as with Lambda. The metrics
+ * the loops record are published together every so often, rather than by each loop's handler
+ */
+public class Worker {
+
+    private final AmazonSQS sqs;
+    private final String queueUrl;
+    private final Env env;
+    private final Supplier<RequestHandler<SQSEvent, SQSBatchResponse>> handlers;
+
+    private final int concurrency;
+    private final int maxMessages;
+    private final int waitTimeSeconds;
+    private final int visibilityTimeoutSeconds;
+    private final long batchTimeoutMs;
+    private final long metricsIntervalMs;
+
+    private final ExecutorService loops;
+    // keeps the messages of every batch in progress invisible and publishes the metrics, a few requests every so often
+    // so one thread is plenty
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "worker-visibility");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean running = true;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong extensions = new AtomicLong();
+
+    /**
+     * @param env The configuration, WORKER_QUEUE_URL has to be set
+     * @param sqs The SQS client to poll with
+     * @param handlers Creates the handler for each receive loop, a handler is only ever used by one loop at a time and
+     *                 shouldn't publish the metrics itself
+     */
+    public Worker(Env env, AmazonSQS sqs, Supplier<RequestHandler<SQSEvent, SQSBatchResponse>> handlers) {
+        if (env.WORKER_QUEUE_URL() == null) {
+            throw new IllegalArgumentException("WORKER_QUEUE_URL has to be set to run the worker");
+        }
+
+        this.env = env;
+        this.sqs = sqs;
+        this.queueUrl = env.WORKER_QUEUE_URL();
+        this.handlers = handlers;
+        this.concurrency = Math.max(1, env.WORKER_CONCURRENCY());
+        this.maxMessages = Math.min(10, Math.max(1, env.WORKER_MAX_MESSAGES()));
+        this.waitTimeSeconds = Math.min(20, Math.max(0, env.WORKER_WAIT_TIME_S()));
+        this.visibilityTimeoutSeconds = Math.max(1, env.WORKER_VISIBILITY_TIMEOUT_S());
+        this.batchTimeoutMs = env.WORKER_BATCH_TIMEOUT_MS();
+        this.metricsIntervalMs = Math.max(1000, env.WORKER_METRICS_INTERVAL_MS());
+        this.loops = newLoopExecutor(concurrency);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Env env = new Env();
+        Components components = Components.get();
+        AmazonSQS sqs = AmazonSQSClientBuilder.standard().withRegion(env.AWS_REGION()).build();
+
+        Worker worker = new Worker(env, sqs, () -> new Ingester(components, false));
+        Runtime.getRuntime().addShutdownHook(new Thread(worker::stop, "worker-shutdown"));
+
+        worker.start();
+        worker.awaitTermination();
+    }
+
+    /**
+     * Virtual threads where the JVM has them (Java 21 onwards), as the receive loops spend nearly all their time
+     * waiting on SQS and Elasticsearch, otherwise a platform thread for each loop
+     */
+    static ExecutorService newLoopExecutor(int threads) {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, r -> new Thread(r, "worker-" + count.incrementAndGet()));
+        }
+    }
+
+    public void start() {
+        System.out.println(String.format(":: Worker polling %s with %d receive loops ::", queueUrl, concurrency));
+        for (int i = 0; i < concurrency; i++) {
+            loops.submit(this::receiveLoop);
+        }
+        loops.shutdown();
+
+        heartbeat.scheduleAtFixedRate(this::publishMetrics, metricsIntervalMs, metricsIntervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops receiving, and waits for the batches in progress to finish
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        System.out.println(":: Worker stopping, finishing the batches in progress ::");
+
+        try {
+            awaitTermination();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        heartbeat.shutdownNow();
+        publishMetrics();
+
+        System.out.println(String.format(":: Worker stopped :: %d messages received, %d deleted, %d failed, " +
+                "%d visibility extensions", received.get(), deleted.get(), failed.get(), extensions.get()));
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        loops.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    public long getReceived() { return received.get(); }
+    public long getDeleted() { return deleted.get(); }
+    public long getFailed() { return failed.get(); }
+    public long getExtensions() { return extensions.get(); }
+
+    private void receiveLoop() {
+        RequestHandler<SQSEvent, SQSBatchResponse> handler = handlers.get();
+
+        while (running) {
+            List<Message> messages;
+            try {
+                messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                        .withMaxNumberOfMessages(maxMessages)
+                        .withWaitTimeSeconds(waitTimeSeconds)
+                        .withVisibilityTimeout(visibilityTimeoutSeconds)
+                        .withAttributeNames("All")).getMessages();
+            } catch (RuntimeException ex) {
+                System.out.println(String.format(":: Couldn't receive messages, trying again shortly :: %s", ex));
+                sleep(1000);
+                continue;
+            }
+
+            if (!messages.isEmpty()) {
+                received.addAndGet(messages.size());
+                handleBatch(handler, messages);
+            }
+        }
+    }
+
+    /**
+     * Handles a batch of messages, keeping them invisible until it's finished, then deletes the ones that didn't fail
+     */
+    void handleBatch(RequestHandler<SQSEvent, SQSBatchResponse> handler, List<Message> messages) {
+        // extend well before the timeout runs out, so a slow request to SQS doesn't let the batch become visible
+        long period = visibilityTimeoutSeconds * 1000L / 2;
+        ScheduledFuture<?> extension = heartbeat.scheduleAtFixedRate(() -> extendVisibility(messages), period, period,
+                TimeUnit.MILLISECONDS);
+
+        Set<String> failedIds = new HashSet<>();
+        try {
+            SQSBatchResponse response = handler.handleRequest(toEvent(messages), new LocalContext("worker", batchTimeoutMs));
+            for (SQSBatchResponse.BatchItemFailure failure : response.getBatchItemFailures()) {
+                failedIds.add(failure.getItemIdentifier());
+            }
+        } catch (RuntimeException ex) {
+            System.out.println(String.format(":: Batch of %d messages failed :: %s", messages.size(), ex));
+            ex.printStackTrace();
+            for (Message message : messages) {
+                failedIds.add(message.getMessageId());
+            }
+        } finally {
+            extension.cancel(false);
+        }
+
+        failed.addAndGet(failedIds.size());
+        deleteHandled(messages, failedIds);
+    }
+
+    private void publishMetrics() {
+        try {
+            Ingester.publishMetrics(env);
+        } catch (RuntimeException ex) {
+            // a failure would stop it being scheduled again
+            System.out.println(String.format(":: Couldn't publish metrics :: %s", ex));
+        }
+    }
+
+    private void extendVisibility(List<Message> messages) {
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(i),
+                    messages.get(i).getReceiptHandle()).withVisibilityTimeout(visibilityTimeoutSeconds));
+        }
+
+        try {
+            sqs.changeMessageVisibilityBatch(queueUrl, entries);
+            extensions.incrementAndGet();
+        } catch (RuntimeException ex) {
+            // it's tried again next time round, and at worst a message is handled twice
+            System.out.println(String.format(":: Couldn't extend the visibility of %d messages :: %s",
+                    messages.size(), ex));
+        }
+    }
+
+    /**
+     * Deletes the messages that were handled with a single request (a batch is never more than the 10 messages a
+     * delete can take). If that fails the messages are just redelivered, which writing documents by ID makes safe
+     */
+    private void deleteHandled(List<Message> messages, Set<String> failedIds) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>();
+        for (Message message : messages) {
+            if (!failedIds.contains(message.getMessageId())) {
+                entries.add(new DeleteMessageBatchRequestEntry(message.getMessageId(), message.getReceiptHandle()));
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        try {
+            DeleteMessageBatchResult result = sqs.deleteMessageBatch(queueUrl, entries);
+            deleted.addAndGet(result.getSuccessful().size());
+            for (BatchResultErrorEntry error : result.getFailed()) {
+                System.out.println(String.format(":: Couldn't delete message %s :: %s", error.getId(),
+                        error.getMessage()));
+            }
+        } catch (RuntimeException ex) {
+            System.out.println(String.format(":: Couldn't delete %d messages :: %s", entries.size(), ex));
+        }
+    }
+
+    /**
+     * @return The messages as Lambda would have passed them to the handler
+     */
+    private SQSEvent toEvent(List<Message> messages) {
+        List<SQSMessage> records = new ArrayList<>();
+        for (Message message : messages) {
+            SQSMessage record = new SQSMessage();
+            record.setMessageId(message.getMessageId());
+            record.setReceiptHandle(message.getReceiptHandle());
+            record.setBody(message.getBody());
+            record.setMd5OfBody(message.getMD5OfBody());
+            record.setAttributes(message.getAttributes());
+            record.setEventSource("aws:sqs");
+            records.add(record);
+        }
+
+        SQSEvent event = new SQSEvent();
+        event.setRecords(records);
+        return event;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package search.ingester.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+/**
+ * A single in-memory queue standing in for SQS, with just enough of it for the worker; receiving (with visibility
+ * timeouts and long polling), batched deletes and batched visibility changes. A receipt handle stops working once
+ * its message has been received again, as with the real thing
+ */
+public class InMemorySqs extends AbstractAmazonSQS {
+
+    private static class Queued {
+        final String id = UUID.randomUUID().toString();
+        final String body;
+        String receiptHandle;
+        long visibleAt;
+        int receives;
+
+        Queued(String body) {
+            this.body = body;
+        }
+    }
+
+    private final List<Queued> queue = new ArrayList<>();
+    private final Map<String, AtomicInteger> receivesById = new ConcurrentHashMap<>();
+    private final AtomicInteger deleteRequests = new AtomicInteger();
+    private final AtomicInteger visibilityRequests = new AtomicInteger();
+
+    public synchronized String send(String body) {
+        Queued message = new Queued(body);
+        queue.add(message);
+        notifyAll();
+        return message.id;
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return How many times each message (by ID) has been received
+     */
+    public Map<String, AtomicInteger> getReceives() { return receivesById; }
+    public int getDeleteRequests() { return deleteRequests.get(); }
+    public int getVisibilityRequests() { return visibilityRequests.get(); }
+
+    @Override
+    public synchronized ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        int max = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+        long waitUntil = System.currentTimeMillis()
+                + (request.getWaitTimeSeconds() == null ? 0 : request.getWaitTimeSeconds() * 1000L);
+
+        List<Message> received = new ArrayList<>();
+        while (true) {
+            long now = System.currentTimeMillis();
+            for (Queued message : queue) {
+                if (received.size() < max && message.visibleAt <= now) {
+                    message.receiptHandle = UUID.randomUUID().toString();
+                    message.visibleAt = now + request.getVisibilityTimeout() * 1000L;
+                    message.receives++;
+                    receivesById.computeIfAbsent(message.id, k -> new AtomicInteger()).incrementAndGet();
+                    received.add(new Message()
+                            .withMessageId(message.id)
+                            .withReceiptHandle(message.receiptHandle)
+                            .withBody(message.body)
+                            .addAttributesEntry("ApproximateReceiveCount", Integer.toString(message.receives))
+                            .addAttributesEntry("SentTimestamp", Long.toString(now)));
+                }
+            }
+
+            if (!received.isEmpty() || now >= waitUntil) {
+                return new ReceiveMessageResult().withMessages(received);
+            }
+            try {
+                // woken by a send, otherwise check again shortly for messages becoming visible
+                wait(Math.min(50, waitUntil - now));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return new ReceiveMessageResult().withMessages(received);
+            }
+        }
+    }
+
+    @Override
+    public synchronized DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        deleteRequests.incrementAndGet();
+        DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+        for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+            Queued message = find(entry.getReceiptHandle());
+            if (message == null) {
+                result.withFailed(invalidHandle(entry.getId()));
+                continue;
+            }
+            queue.remove(message);
+            result.withSuccessful(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+        }
+        return result;
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(String queueUrl, List<DeleteMessageBatchRequestEntry> entries) {
+        return deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+    }
+
+    @Override
+    public synchronized ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+            ChangeMessageVisibilityBatchRequest request) {
+        visibilityRequests.incrementAndGet();
+        ChangeMessageVisibilityBatchResult result = new ChangeMessageVisibilityBatchResult();
+        for (ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+            Queued message = find(entry.getReceiptHandle());
+            if (message == null) {
+                result.withFailed(invalidHandle(entry.getId()));
+                continue;
+            }
+            message.visibleAt = System.currentTimeMillis() + entry.getVisibilityTimeout() * 1000L;
+            result.withSuccessful(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+        }
+        return result;
+    }
+
+    @Override
+    public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+            String queueUrl, List<ChangeMessageVisibilityBatchRequestEntry> entries) {
+        return changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queueUrl, entries));
+    }
+
+    private Queued find(String receiptHandle) {
+        for (Queued message : queue) {
+            if (receiptHandle.equals(message.receiptHandle)) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private static BatchResultErrorEntry invalidHandle(String id) {
+        return new BatchResultErrorEntry().withId(id).withCode("ReceiptHandleIsInvalid").withSenderFault(true)
+                .withMessage("The receipt handle has expired");
+    }
+}
@@ -0,0 +1,104 @@
+package search.ingester.worker;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+
+import search.ingester.Env;
+
+public class TestWorker {
+
+    @Test
+    public void shouldDeleteHandledMessagesAndLeaveFailedOnesToBeRedelivered() throws Exception {
+        InMemorySqs sqs = new InMemorySqs();
+        for (int i = 0; i < 25; i++) {
+            sqs.send(i % 5 == 0 ? "fail" : "ok");
+        }
+
+        Set<String> handled = ConcurrentHashMap.newKeySet();
+        Worker worker = new Worker(env(3, 30), sqs, () -> (event, context) -> {
+            List<SQSBatchResponse.BatchItemFailure> failures = new ArrayList<>();
+            for (SQSMessage record : event.getRecords()) {
+                handled.add(record.getMessageId());
+                if (record.getBody().equals("fail")) {
+                    failures.add(new SQSBatchResponse.BatchItemFailure(record.getMessageId()));
+                }
+            }
+            return new SQSBatchResponse(failures);
+        });
+
+        worker.start();
+        waitFor(() -> worker.getDeleted() == 20 && worker.getFailed() == 5);
+        worker.stop();
+
+        assertEquals(25, handled.size());
+        assertEquals(5, sqs.size());
+        // each received batch is deleted with one request
+        assertTrue(sqs.getDeleteRequests() <= 20);
+        for (AtomicInteger receives : sqs.getReceives().values()) {
+            assertEquals(1, receives.get());
+        }
+    }
+
+    @Test
+    public void shouldKeepASlowBatchInvisibleUntilItsHandled() throws Exception {
+        InMemorySqs sqs = new InMemorySqs();
+        String id = sqs.send("slow");
+
+        AtomicInteger handled = new AtomicInteger();
+        RequestHandler<SQSEvent, SQSBatchResponse> slow = (event, context) -> {
+            handled.addAndGet(event.getRecords().size());
+            try {
+                // well past the visibility timeout
+                Thread.sleep(2500);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return new SQSBatchResponse(new ArrayList<>());
+        };
+        Worker worker = new Worker(env(2, 1), sqs, () -> slow);
+
+        worker.start();
+        waitFor(() -> worker.getDeleted() == 1);
+        worker.stop();
+
+        assertEquals(1, handled.get());
+        assertEquals(1, sqs.getReceives().get(id).get());
+        assertTrue(sqs.getVisibilityRequests() >= 2);
+        assertEquals(0, sqs.size());
+    }
+
+    private static Env env(int concurrency, int visibilityTimeoutSeconds) {
+        return new Env() {
+            @Override
+            public String WORKER_QUEUE_URL() { return "https://sqs.eu-west-1.amazonaws.com/000000000000/test"; }
+            @Override
+            public int WORKER_CONCURRENCY() { return concurrency; }
+            @Override
+            public int WORKER_MAX_MESSAGES() { return 4; }
+            @Override
+            public int WORKER_WAIT_TIME_S() { return 1; }
+            @Override
+            public int WORKER_VISIBILITY_TIMEOUT_S() { return visibilityTimeoutSeconds; }
+        };
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(20);
+        }
+    }
+}